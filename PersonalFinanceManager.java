@@ -1,10 +1,67 @@
 import java.util.*;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.net.InetAddress;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.time.YearMonth;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
 import java.util.Base64;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.util.function.IntFunction;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
 
 // Enum for transaction types
 enum TransactionType {
@@ -12,16 +69,134 @@ enum TransactionType {
     EXPENSE
 }
 
+// Money class
+// An exact amount of money as a whole number of cents. Arithmetic throws ArithmeticException
+// on overflow instead of wrapping, and text is parsed in decimal, so the "%.2f" amounts
+// written by earlier versions read back as exactly the cents they printed.
+final class Money implements Comparable<Money> {
+    static final Money ZERO = new Money(0);
+
+    // Rows per block of the summation kernels. A block cannot overflow while every value in
+    // it stays below 2^52 in magnitude, which a running OR of the magnitudes shows cheaply.
+    private static final int SUM_BLOCK = 1024;
+    private static final long SAFE_MAGNITUDE = 1L << 52;
+
+    private final long cents;
+
+    private Money(long cents) {
+        this.cents = cents;
+    }
+
+    public static Money ofCents(long cents) {
+        return cents == 0 ? ZERO : new Money(cents);
+    }
+
+    // Decimal text such as "12.5" or "-3.05", rounded half-up to whole cents
+    public static Money parse(String text) {
+        try {
+            return ofCents(new BigDecimal(text.trim()).movePointRight(2)
+                .setScale(0, RoundingMode.HALF_UP).longValueExact());
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Amount out of range: " + text);
+        }
+    }
+
+    public long cents() { return cents; }
+    public int signum() { return Long.signum(cents); }
+    public Money plus(Money other) { return ofCents(Math.addExact(cents, other.cents)); }
+    public Money minus(Money other) { return ofCents(Math.subtractExact(cents, other.cents)); }
+    public Money negate() { return ofCents(Math.negateExact(cents)); }
+    public Money abs() { return cents < 0 ? negate() : this; }
+
+    // For ratios and percentages only; amounts themselves never go through double
+    public double toDouble() { return cents / 100.0; }
+
+    @Override
+    public int compareTo(Money other) {
+        return Long.compare(cents, other.cents);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Money && ((Money) other).cents == cents;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(cents);
+    }
+
+    // Plain two-decimal form, independent of the default locale: "1234.50", "-0.05"
+    @Override
+    public String toString() {
+        return format(cents);
+    }
+
+    static String format(long cents) {
+        long whole = Math.abs(cents / 100);
+        int fraction = (int) Math.abs(cents % 100);
+        return (cents < 0 ? "-" : "") + whole + (fraction < 10 ? ".0" : ".") + fraction;
+    }
+
+    // Summation kernels. The inner loops are branch-free adds over a primitive array, which
+    // the JIT unrolls and vectorizes; only a block that might overflow is summed again with
+    // checked adds. Block results are always combined with checked adds.
+    static long sum(long[] cents, int from, int to) {
+        long total = 0;
+        for (int start = from; start < to; start += SUM_BLOCK) {
+            int end = Math.min(start + SUM_BLOCK, to);
+            long block = 0;
+            long magnitudes = 0;
+            for (int i = start; i < end; i++) {
+                long value = cents[i];
+                block += value;
+                magnitudes |= value ^ (value >> 63);
+            }
+            if (magnitudes >= SAFE_MAGNITUDE) {
+                block = 0;
+                for (int i = start; i < end; i++) {
+                    block = Math.addExact(block, cents[i]);
+                }
+            }
+            total = Math.addExact(total, block);
+        }
+        return total;
+    }
+
+    // Sum of the values whose tag equals the given one, e.g. the income rows of a ledger
+    static long sumWhere(long[] cents, byte[] tags, byte tag, int from, int to) {
+        long total = 0;
+        for (int start = from; start < to; start += SUM_BLOCK) {
+            int end = Math.min(start + SUM_BLOCK, to);
+            long block = 0;
+            long magnitudes = 0;
+            for (int i = start; i < end; i++) {
+                long value = tags[i] == tag ? cents[i] : 0;
+                block += value;
+                magnitudes |= value ^ (value >> 63);
+            }
+            if (magnitudes >= SAFE_MAGNITUDE) {
+                block = 0;
+                for (int i = start; i < end; i++) {
+                    if (tags[i] == tag) block = Math.addExact(block, cents[i]);
+                }
+            }
+            total = Math.addExact(total, block);
+        }
+        return total;
+    }
+}
+
 // Transaction class
 class Transaction {
     private String id;
     private TransactionType type;
-    private double amount;
+    private Money amount;
     private String category;
     private String description;
     private LocalDate date;
 
-    public Transaction(TransactionType type, double amount, String category, String description) {
+    public Transaction(TransactionType type, Money amount, String category, String description) {
         this.id = generateId();
         this.type = type;
         this.amount = amount;
@@ -30,7 +205,7 @@ class Transaction {
         this.date = LocalDate.now();
     }
 
-    public Transaction(String id, TransactionType type, double amount, String category, String description, LocalDate date) {
+    public Transaction(String id, TransactionType type, Money amount, String category, String description, LocalDate date) {
         this.id = id;
         this.type = type;
         this.amount = amount;
@@ -40,12 +215,12 @@ class Transaction {
     }
 
     private String generateId() {
-        return "TXN_" + System.currentTimeMillis() + "_" + (int)(Math.random() * 1000);
+        return TransactionIdGenerator.nextId();
     }
 
     public String getId() { return id; }
     public TransactionType getType() { return type; }
-    public double getAmount() { return amount; }
+    public Money getAmount() { return amount; }
     public String getCategory() { return category; }
     public String getDescription() { return description; }
     public LocalDate getDate() { return date; }
@@ -54,301 +229,5634 @@ class Transaction {
     public String toString() {
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd");
         String typeSymbol = type == TransactionType.INCOME ? "+" : "-";
-        return String.format("%s | %s | %-10s | %s$%-8.2f | %s", 
+        return String.format("%s | %s | %-10s | %s$%-8s | %s", 
             date.format(formatter), id.substring(0, 8) + "...", category, typeSymbol, amount, description);
     }
 
     public String toFileString() {
-        return String.format("%s,%s,%.2f,%s,%s,%s", 
+        return String.format("%s,%s,%s,%s,%s,%s", 
             id, type, amount, category, description, date);
     }
 
     public static Transaction fromFileString(String fileString) {
         try {
-            String[] parts = fileString.split(",");
-            if (parts.length != 6) return null;
+            // The description is the only free-text field, so it takes everything
+            // between the category and the trailing date, commas included
+            String[] parts = fileString.split(",", 5);
+            if (parts.length != 5) return rejected();
+            int dateStart = parts[4].lastIndexOf(',');
+            if (dateStart < 0) return rejected();
             
             String id = parts[0];
             TransactionType type = TransactionType.valueOf(parts[1]);
-            double amount = Double.parseDouble(parts[2]);
+            Money amount = Money.parse(parts[2]);
             String category = parts[3];
-            String description = parts[4];
-            LocalDate date = LocalDate.parse(parts[5]);
+            String description = parts[4].substring(0, dateStart);
+            LocalDate date = LocalDate.parse(parts[4].substring(dateStart + 1));
             
+            Metrics.ROWS_PARSED.increment();
             return new Transaction(id, type, amount, category, description, date);
         } catch (Exception e) {
-            return null;
+            return rejected();
+        }
+    }
+
+    private static Transaction rejected() {
+        Metrics.ROWS_REJECTED.increment();
+        return null;
+    }
+}
+
+// TransactionIdGenerator class
+// Time-ordered 64-bit ids: 42 bits of milliseconds since 2024-01-01, 10 bits of node id and
+// a 12-bit sequence. State advances with a single CAS, so concurrent callers never collide;
+// when a millisecond's sequence is used up the clock is borrowed from the next one instead
+// of waiting. Ids render as "TXN_" plus 16 hex digits, which sort in creation order and
+// stay compatible with the older "TXN_<millis>_<random>" ids already on disk.
+class TransactionIdGenerator {
+    private static final long EPOCH_MILLIS = 1704067200000L;
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final long NODE = Long.getLong("pfm.node",
+        ThreadLocalRandom.current().nextInt(1 << NODE_BITS)) & ((1L << NODE_BITS) - 1);
+    // Last issued (timestamp << SEQUENCE_BITS | sequence)
+    private static final AtomicLong STATE = new AtomicLong();
+
+    public static long nextValue() {
+        long now = (System.currentTimeMillis() - EPOCH_MILLIS) << SEQUENCE_BITS;
+        long previous;
+        long next;
+        do {
+            previous = STATE.get();
+            next = Math.max(now, previous + 1);
+        } while (!STATE.compareAndSet(previous, next));
+
+        long timestamp = next >>> SEQUENCE_BITS;
+        return (timestamp << (NODE_BITS + SEQUENCE_BITS)) | (NODE << SEQUENCE_BITS) | (next & SEQUENCE_MASK);
+    }
+
+    public static String nextId() {
+        long value = nextValue();
+        char[] id = new char[20];
+        id[0] = 'T';
+        id[1] = 'X';
+        id[2] = 'N';
+        id[3] = '_';
+        for (int i = 19; i >= 4; i--) {
+            id[i] = HEX[(int) (value & 0xF)];
+            value >>>= 4;
         }
+        return new String(id);
     }
 }
 
 // Budget class
+// A monthly limit per category, with spending tracked per calendar month. The budget holds
+// only its current period: the spending in cents in an atomic counter, so sessions adding
+// and deleting expenses of the category in parallel never lose an update, and the unused
+// amount carried into it when carry-over is on. Earlier periods need no state of their own:
+// their spending is the category's monthly bucket in LedgerAggregates and their limit comes
+// from the history of limit changes. Alert thresholds are percentages of the current
+// period's limit, kept together with the spending boundaries they stand for.
 class Budget {
+    static final int[] DEFAULT_ALERT_THRESHOLDS = { 90, 100 };
+    static final int MAX_ALERT_LEVELS = 5;
+    static final int MAX_ALERT_PERCENT = 1000;
+
     private String category;
-    private double monthlyLimit;
-    private double currentSpending;
+    // Month index -> limit in force from that month on; the last entry is the current limit
+    private final ConcurrentSkipListMap<Integer, Money> limits = new ConcurrentSkipListMap<>();
+    private volatile boolean carryOver;
+    private volatile int period;
+    private volatile long carryInCents;
+    private final AtomicLong spendingCents = new AtomicLong();
+    private volatile AlertLevels alertLevels;
+
+    // Usage counts as past a threshold once spending * 100 > limit * threshold
+    private static final class AlertLevels {
+        final int[] thresholds;
+        final long[] boundaries;
 
-    public Budget(String category, double monthlyLimit) {
+        AlertLevels(int[] thresholds, Money limit) {
+            this.thresholds = thresholds;
+            this.boundaries = new long[thresholds.length];
+            long cents = limit.cents();
+            for (int i = 0; i < thresholds.length; i++) {
+                try {
+                    boundaries[i] = Math.addExact(Math.multiplyExact(cents / 100, thresholds[i]),
+                        cents % 100 * thresholds[i] / 100);
+                } catch (ArithmeticException e) {
+                    boundaries[i] = Long.MAX_VALUE;
+                }
+            }
+        }
+    }
+
+    public Budget(String category, Money monthlyLimit) {
+        this(category, monthlyLimit, Ledger.currentMonth());
+    }
+
+    Budget(String category, Money monthlyLimit, int period) {
         this.category = category.toUpperCase();
-        this.monthlyLimit = monthlyLimit;
-        this.currentSpending = 0.0;
+        this.period = period;
+        this.limits.put(period, monthlyLimit);
+        this.alertLevels = new AlertLevels(DEFAULT_ALERT_THRESHOLDS, monthlyLimit);
     }
 
     public String getCategory() { return category; }
-    public double getMonthlyLimit() { return monthlyLimit; }
-    public double getCurrentSpending() { return currentSpending; }
-    public void setMonthlyLimit(double limit) { this.monthlyLimit = limit; }
-    public void addSpending(double amount) { this.currentSpending += amount; }
-    public void resetSpending() { this.currentSpending = 0.0; }
+    public Money getMonthlyLimit() { return limits.lastEntry().getValue(); }
+    public Money getCurrentSpending() { return Money.ofCents(spendingCents.get()); }
+    public int period() { return period; }
+    public int firstMonth() { return limits.firstKey(); }
+    public boolean isCarryOver() { return carryOver; }
+    public void setCarryOver(boolean carryOver) { this.carryOver = carryOver; }
+    public Money getCarryIn() { return Money.ofCents(carryInCents); }
+
+    // The current period's limit plus what was carried into it
+    public Money getEffectiveLimit() {
+        return getMonthlyLimit().plus(getCarryIn());
+    }
+
+    // Limit in force during a month, or null before the budget existed
+    public Money limitFor(int month) {
+        Map.Entry<Integer, Money> limit = limits.floorEntry(month);
+        return limit == null ? null : limit.getValue();
+    }
+    public int[] getAlertThresholds() { return alertLevels.thresholds.clone(); }
+    // Returns the spending in cents after the change
+    public long addSpending(Money amount) { return spendingCents.accumulateAndGet(amount.cents(), Math::addExact); }
+    public long removeSpending(Money amount) { return spendingCents.accumulateAndGet(amount.cents(), Math::subtractExact); }
+    public void resetSpending() { spendingCents.set(0); }
+    public long setSpending(Money amount) { return spendingCents.getAndSet(amount.cents()); }
+
+    // The limit applies from the given month on
+    public void setMonthlyLimit(int fromMonth, Money limit) {
+        limits.tailMap(fromMonth, false).clear();
+        limits.put(fromMonth, limit);
+        this.alertLevels = new AlertLevels(alertLevels.thresholds, getEffectiveLimit());
+    }
+
+    public void setAlertThresholds(int[] thresholds) {
+        this.alertLevels = new AlertLevels(thresholds.clone(), getEffectiveLimit());
+    }
+
+    // Makes the given month the current period. Returns the spending alerts should compare
+    // the new one against: the old value within the same period, nothing for a new period.
+    public long startPeriod(int month, long spending, long carryIn) {
+        boolean samePeriod = month == period;
+        period = month;
+        carryInCents = carryIn;
+        long before = spendingCents.getAndSet(spending);
+        alertLevels = new AlertLevels(alertLevels.thresholds, getEffectiveLimit());
+        return samePeriod ? before : 0;
+    }
+
+    // Highest threshold passed by spending going from before to after cents, or 0
+    int crossedThreshold(long before, long after) {
+        AlertLevels levels = alertLevels;
+        for (int i = levels.boundaries.length - 1; i >= 0; i--) {
+            if (after > levels.boundaries[i]) {
+                return before > levels.boundaries[i] ? 0 : levels.thresholds[i];
+            }
+        }
+        return 0;
+    }
+
+    // Ascending distinct percentages from e.g. "50, 90, 100"; throws if out of range
+    static int[] parseAlertThresholds(String text) {
+        TreeSet<Integer> levels = new TreeSet<>();
+        for (String part : text.trim().split("[\\s,;]+")) {
+            int percent = Integer.parseInt(part);
+            if (percent < 1 || percent > MAX_ALERT_PERCENT) {
+                throw new IllegalArgumentException("Thresholds must be between 1 and " + MAX_ALERT_PERCENT + "%");
+            }
+            levels.add(percent);
+        }
+        if (levels.size() > MAX_ALERT_LEVELS) {
+            throw new IllegalArgumentException("At most " + MAX_ALERT_LEVELS + " thresholds");
+        }
+        int[] thresholds = new int[levels.size()];
+        int i = 0;
+        for (int percent : levels) thresholds[i++] = percent;
+        return thresholds;
+    }
 
-    public double getRemainingBudget() {
-        return monthlyLimit - currentSpending;
+    public Money getRemainingBudget() {
+        return getEffectiveLimit().minus(getCurrentSpending());
     }
 
     public boolean isOverBudget() {
-        return currentSpending > monthlyLimit;
+        return getCurrentSpending().compareTo(getEffectiveLimit()) > 0;
     }
 
     public double getUsagePercentage() {
-        if (monthlyLimit == 0) return 0;
-        return (currentSpending / monthlyLimit) * 100;
+        long limit = getEffectiveLimit().cents();
+        if (limit == 0) return 0;
+        return spendingCents.get() * 100.0 / limit;
     }
 
     @Override
     public String toString() {
-        String status = isOverBudget() ? "OVER BUDGET" : "WITHIN BUDGET";
-        return String.format("%-15s | $%-8.2f / $%-8.2f | $%-8.2f remaining | %s", 
-            category, currentSpending, monthlyLimit, getRemainingBudget(), status);
+        Money spending = getCurrentSpending();
+        Money limit = getEffectiveLimit();
+        String status = spending.compareTo(limit) > 0 ? "OVER BUDGET" : "WITHIN BUDGET";
+        return String.format("%-15s | $%-8s / $%-8s | $%-8s remaining | %s", 
+            category, spending, limit, limit.minus(spending), status);
     }
 
+    // category,limit,spending,thresholds,carry-over,period,limit history, e.g.
+    // "FOOD,150.00,42.10,90;100,carry,2025-03,2025-01=100.00;2025-03=150.00"
     public String toFileString() {
-        return String.format("%s,%.2f,%.2f", category, monthlyLimit, currentSpending);
+        StringJoiner levels = new StringJoiner(";");
+        for (int percent : alertLevels.thresholds) levels.add(Integer.toString(percent));
+        StringJoiner history = new StringJoiner(";");
+        for (Map.Entry<Integer, Money> limit : limits.entrySet()) {
+            history.add(Ledger.yearMonth(limit.getKey()) + "=" + limit.getValue());
+        }
+        return String.join(",", category, getMonthlyLimit().toString(), getCurrentSpending().toString(),
+            levels.toString(), carryOver ? "carry" : "nocarry", Ledger.yearMonth(period).toString(),
+            history.toString());
     }
 
     public static Budget fromFileString(String fileString) {
         try {
             String[] parts = fileString.split(",");
-            if (parts.length != 3) return null;
+            if (parts.length != 3 && parts.length != 4 && parts.length != 7) {
+                Metrics.BUDGETS_REJECTED.increment();
+                return null;
+            }
             
             String category = parts[0];
-            double limit = Double.parseDouble(parts[1]);
-            double spending = Double.parseDouble(parts[2]);
+            Money limit = Money.parse(parts[1]);
+            Money spending = Money.parse(parts[2]);
             
-            Budget budget = new Budget(category, limit);
-            budget.currentSpending = spending;
+            // Older lines hold a lifetime total and no history; they start a period now
+            Budget budget;
+            if (parts.length == 7) {
+                budget = new Budget(category, limit, Ledger.monthIndex(YearMonth.parse(parts[5])));
+                budget.limits.clear();
+                for (String entry : parts[6].split(";")) {
+                    int separator = entry.indexOf('=');
+                    budget.limits.put(Ledger.monthIndex(YearMonth.parse(entry.substring(0, separator))),
+                        Money.parse(entry.substring(separator + 1)));
+                }
+                budget.carryOver = parts[4].equals("carry");
+            } else {
+                budget = new Budget(category, limit);
+            }
+            budget.setSpending(spending);
+            if (parts.length >= 4) {
+                budget.setAlertThresholds(parseAlertThresholds(parts[3]));
+            }
             return budget;
         } catch (Exception e) {
+            Metrics.BUDGETS_REJECTED.increment();
             return null;
         }
     }
 }
 
-// FileManager class
-class FileManager {
-    private static final String TRANSACTIONS_FILE = "transactions.dat";
-    private static final String BUDGETS_FILE = "budgets.dat";
-    private static final String ENCRYPTION_KEY = "MySuperSecretKey123";
+// BudgetAlerts class
+// Event-driven budget alerts. A budget keeps its alert levels as spending boundaries in
+// cents, so each counted expense is checked with a few comparisons of the spending before
+// and after it, with no polling and no rescans. When spending passes one or more levels,
+// one alert for the highest of them goes to every sink. Sinks are pluggable: the console
+// prints right away, while the log file and the webhook do their I/O on a background
+// thread, so a slow disk or endpoint never holds up a transaction. The log file is enabled
+// with -Dpfm.alertLog=<file>, the webhook with -Dpfm.alertWebhook=<url>, e.g. a local
+// endpoint such as http://127.0.0.1:9000/alerts.
+class BudgetAlerts {
+    interface Sink {
+        void deliver(Alert alert);
+    }
 
-    private static String simpleEncrypt(String data) {
-        try {
-            byte[] keyBytes = ENCRYPTION_KEY.getBytes();
-            byte[] dataBytes = data.getBytes();
-            byte[] encrypted = new byte[dataBytes.length];
-            
-            for (int i = 0; i < dataBytes.length; i++) {
-                encrypted[i] = (byte) (dataBytes[i] ^ keyBytes[i % keyBytes.length]);
-            }
-            return Base64.getEncoder().encodeToString(encrypted);
-        } catch (Exception e) {
-            System.out.println("Warning: Encryption failed, saving as plain text");
-            return data;
+    static final class Alert {
+        final String category;
+        final int threshold;
+        final Money spending;
+        final Money limit;
+        final LocalDateTime time;
+
+        Alert(String category, int threshold, Money spending, Money limit) {
+            this.category = category;
+            this.threshold = threshold;
+            this.spending = spending;
+            this.limit = limit;
+            this.time = LocalDateTime.now().withNano(0);
+        }
+
+        String message() {
+            return String.format(Locale.ROOT, "Budget alert: %s has passed %d%% of its $%s limit ($%s spent)",
+                category, threshold, limit, spending);
+        }
+
+        String toJson() {
+            StringBuilder out = new StringBuilder("{\"category\":");
+            TransactionExporter.appendJsonString(out, category);
+            out.append(",\"threshold\":").append(threshold).append(",\"spending\":");
+            TransactionExporter.appendCents(out, spending.cents());
+            out.append(",\"limit\":");
+            TransactionExporter.appendCents(out, limit.cents());
+            return out.append(",\"time\":\"").append(time).append("\"}").toString();
         }
     }
 
-    private static String simpleDecrypt(String encryptedData) {
-        try {
-            byte[] keyBytes = ENCRYPTION_KEY.getBytes();
-            byte[] encryptedBytes = Base64.getDecoder().decode(encryptedData);
-            byte[] decrypted = new byte[encryptedBytes.length];
-            
-            for (int i = 0; i < encryptedBytes.length; i++) {
-                decrypted[i] = (byte) (encryptedBytes[i] ^ keyBytes[i % keyBytes.length]);
-            }
-            return new String(decrypted);
-        } catch (Exception e) {
-            System.out.println("Warning: Decryption failed, reading as plain text");
-            return encryptedData;
+    private static final ExecutorService DELIVERY = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "pfm-alerts");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final int WEBHOOK_TIMEOUT_MILLIS = 2000;
+
+    private final List<Sink> sinks = new CopyOnWriteArrayList<>();
+
+    // Console, plus the log file and webhook when configured
+    static BudgetAlerts fromSystemProperties() {
+        BudgetAlerts alerts = new BudgetAlerts();
+        alerts.addSink(console());
+        String log = System.getProperty("pfm.alertLog");
+        if (log != null && !log.isEmpty()) {
+            alerts.addSink(async(logFile(Paths.get(log))));
+        }
+        String webhook = System.getProperty("pfm.alertWebhook");
+        if (webhook != null && !webhook.isEmpty()) {
+            alerts.addSink(async(webhook(webhook)));
         }
+        return alerts;
     }
 
-    public static void saveTransactions(List<Transaction> transactions) {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(TRANSACTIONS_FILE))) {
-            for (Transaction transaction : transactions) {
-                String encryptedLine = simpleEncrypt(transaction.toFileString());
-                writer.println(encryptedLine);
+    public void addSink(Sink sink) {
+        sinks.add(sink);
+    }
+
+    // Called with the budget's spending in cents before and after a change, under the
+    // category's stripe so changes of one budget are seen in order
+    public void spendingChanged(Budget budget, long before, long after) {
+        if (after <= before) return;
+        int threshold = budget.crossedThreshold(before, after);
+        if (threshold == 0) return;
+        Metrics.ALERTS_FIRED.increment();
+        Alert alert = new Alert(budget.getCategory(), threshold, Money.ofCents(after), budget.getEffectiveLimit());
+        for (Sink sink : sinks) {
+            try {
+                sink.deliver(alert);
+            } catch (RuntimeException e) {
+                Metrics.ALERTS_FAILED.increment();
             }
-        } catch (IOException e) {
-            System.out.println("Error: Could not save transactions to file");
         }
     }
 
-    public static List<Transaction> loadTransactions() {
-        List<Transaction> transactions = new ArrayList<>();
+    // Waits briefly for alerts still being delivered in the background
+    public static void flush() {
         try {
-            if (!Files.exists(Paths.get(TRANSACTIONS_FILE))) {
-                return transactions;
+            DELIVERY.submit(() -> { }).get(WEBHOOK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            // Undelivered alerts are dropped with the process
+        }
+    }
+
+    // Sinks
+    static Sink console() {
+        return alert -> System.out.println("*** " + alert.message() + " ***");
+    }
+
+    static Sink async(Sink sink) {
+        return alert -> DELIVERY.execute(() -> {
+            try {
+                sink.deliver(alert);
+            } catch (RuntimeException e) {
+                Metrics.ALERTS_FAILED.increment();
             }
-            
-            List<String> lines = Files.readAllLines(Paths.get(TRANSACTIONS_FILE));
-            for (String encryptedLine : lines) {
-                String decryptedLine = simpleDecrypt(encryptedLine);
-                Transaction transaction = Transaction.fromFileString(decryptedLine);
-                if (transaction != null) {
-                    transactions.add(transaction);
+        });
+    }
+
+    static Sink logFile(Path file) {
+        return alert -> {
+            try {
+                Files.write(file, (alert.time + " " + alert.message() + System.lineSeparator())
+                    .getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    // POSTs each alert as JSON; any answer but 2xx counts as a failed delivery
+    static Sink webhook(String url) {
+        URL endpoint;
+        try {
+            endpoint = new URL(url);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid alert webhook URL: " + url, e);
+        }
+        return alert -> {
+            try {
+                HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+                connection.setConnectTimeout(WEBHOOK_TIMEOUT_MILLIS);
+                connection.setReadTimeout(WEBHOOK_TIMEOUT_MILLIS);
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(alert.toJson().getBytes(StandardCharsets.UTF_8));
                 }
+                int status = connection.getResponseCode();
+                connection.disconnect();
+                if (status / 100 != 2) {
+                    throw new IllegalStateException("Alert webhook answered " + status);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
-        } catch (IOException e) {
-            System.out.println("Warning: Could not load transactions file");
+        };
+    }
+}
+
+// SnapshotFormat class
+// Binary columnar layout of a partition's .dat file. Every column is stored contiguously so that
+// loading and saving are bulk buffer copies: amounts as long cents, dates as epoch days,
+// types as a bitset (1 = INCOME) and categories as ids into a dictionary. Strings are kept
+// in UTF-8 heaps addressed through offset tables. The file is encrypted by CipherFile, whose
+// frames a partition's TransactionStore decrypts as it reads them.
+class SnapshotFormat {
+    static final int MAGIC = 0x50464D43; // "PFMC"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 32;
+
+    // Section offsets derived from the header counts
+    static class Layout {
+        final int rows;
+        final int categories;
+        final int centsOffset;
+        final int typesOffset;
+        final int daysOffset;
+        final int categoryIdsOffset;
+        final int categoryOffsetsOffset;
+        final int idOffsetsOffset;
+        final int descriptionOffsetsOffset;
+        final int categoryHeapOffset;
+        final int idHeapOffset;
+        final int descriptionHeapOffset;
+        final int totalBytes;
+
+        Layout(int rows, int categories, int categoryHeapBytes, int idHeapBytes, int descriptionHeapBytes) {
+            this.rows = rows;
+            this.categories = categories;
+            this.centsOffset = HEADER_BYTES;
+            this.typesOffset = centsOffset + rows * Long.BYTES;
+            this.daysOffset = typesOffset + typeWords(rows) * Long.BYTES;
+            this.categoryIdsOffset = daysOffset + rows * Integer.BYTES;
+            this.categoryOffsetsOffset = categoryIdsOffset + rows * Integer.BYTES;
+            this.idOffsetsOffset = categoryOffsetsOffset + (categories + 1) * Integer.BYTES;
+            this.descriptionOffsetsOffset = idOffsetsOffset + (rows + 1) * Integer.BYTES;
+            this.categoryHeapOffset = descriptionOffsetsOffset + (rows + 1) * Integer.BYTES;
+            this.idHeapOffset = categoryHeapOffset + categoryHeapBytes;
+            this.descriptionHeapOffset = idHeapOffset + idHeapBytes;
+            this.totalBytes = descriptionHeapOffset + descriptionHeapBytes;
+        }
+
+        static Layout fromHeader(ByteBuffer buffer) {
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IllegalArgumentException("Unsupported snapshot format");
+            }
+            return new Layout(buffer.getInt(8), buffer.getInt(12),
+                buffer.getInt(16), buffer.getInt(20), buffer.getInt(24));
         }
-        return transactions;
     }
 
-    public static void saveBudgets(List<Budget> budgets) {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(BUDGETS_FILE))) {
-            for (Budget budget : budgets) {
-                String encryptedLine = simpleEncrypt(budget.toFileString());
-                writer.println(encryptedLine);
+    static int typeWords(int rows) {
+        return (rows + 63) >>> 6;
+    }
+
+    static boolean isSnapshot(Path file) throws IOException {
+        if (Files.size(file) < HEADER_BYTES) return false;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            return in.readInt() == MAGIC;
+        }
+    }
+
+
+    // Random stamp shared by a snapshot and the side files built from it
+    static int generation(ByteBuffer buffer) {
+        return buffer.getInt(28);
+    }
+
+    // Encodes the given live rows of the ledger, in order
+    public static byte[] encode(Ledger ledger, int[] ledgerRows, int generation) {
+        int rows = ledgerRows.length;
+        long[] cents = new long[rows];
+        long[] types = new long[typeWords(rows)];
+        int[] days = new int[rows];
+        int[] categoryIds = new int[rows];
+        byte[][] ids = new byte[rows][];
+        byte[][] descriptions = new byte[rows][];
+        int idHeapBytes = 0;
+        int descriptionHeapBytes = 0;
+
+        // Rows are packed; category ids are kept as the ledger numbers them
+        long[] ledgerCents = ledger.centsColumn();
+        int[] ledgerDays = ledger.dayColumn();
+        byte[] ledgerTypes = ledger.typeColumn();
+        int[] ledgerCategories = ledger.categoryColumn();
+        for (int i = 0; i < rows; i++) {
+            int row = ledgerRows[i];
+            cents[i] = ledgerCents[row];
+            if (ledgerTypes[row] == Ledger.INCOME) {
+                types[i >>> 6] |= 1L << i;
             }
-        } catch (IOException e) {
-            System.out.println("Error: Could not save budgets to file");
+            days[i] = ledgerDays[row];
+            categoryIds[i] = ledgerCategories[row];
+            ids[i] = ledger.id(row).getBytes(StandardCharsets.UTF_8);
+            descriptions[i] = ledger.description(row).getBytes(StandardCharsets.UTF_8);
+            idHeapBytes += ids[i].length;
+            descriptionHeapBytes += descriptions[i].length;
+        }
+
+        CategoryDictionary dictionary = ledger.categories();
+        byte[][] categories = new byte[dictionary.size()][];
+        int categoryHeapBytes = 0;
+        for (int id = 0; id < categories.length; id++) {
+            categories[id] = dictionary.name(id).getBytes(StandardCharsets.UTF_8);
+            categoryHeapBytes += categories[id].length;
         }
+
+        Layout layout = new Layout(rows, categories.length, categoryHeapBytes, idHeapBytes, descriptionHeapBytes);
+        ByteBuffer buffer = ByteBuffer.allocate(layout.totalBytes);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(rows).putInt(categories.length)
+            .putInt(categoryHeapBytes).putInt(idHeapBytes).putInt(descriptionHeapBytes).putInt(generation);
+
+        buffer.position(layout.centsOffset);
+        buffer.asLongBuffer().put(cents);
+        buffer.position(layout.typesOffset);
+        buffer.asLongBuffer().put(types);
+        buffer.position(layout.daysOffset);
+        buffer.asIntBuffer().put(days);
+        buffer.position(layout.categoryIdsOffset);
+        buffer.asIntBuffer().put(categoryIds);
+
+        writeStrings(buffer, categories, layout.categoryOffsetsOffset, layout.categoryHeapOffset);
+        writeStrings(buffer, ids, layout.idOffsetsOffset, layout.idHeapOffset);
+        writeStrings(buffer, descriptions, layout.descriptionOffsetsOffset, layout.descriptionHeapOffset);
+        return buffer.array();
     }
 
-    public static List<Budget> loadBudgets() {
-        List<Budget> budgets = new ArrayList<>();
-        try {
-            if (!Files.exists(Paths.get(BUDGETS_FILE))) {
-                return budgets;
+    private static void writeStrings(ByteBuffer buffer, byte[][] strings, int offsetsOffset, int heapOffset) {
+        int heapPosition = 0;
+        buffer.position(heapOffset);
+        for (int i = 0; i < strings.length; i++) {
+            buffer.putInt(offsetsOffset + i * Integer.BYTES, heapPosition);
+            buffer.put(strings[i]);
+            heapPosition += strings[i].length;
+        }
+        buffer.putInt(offsetsOffset + strings.length * Integer.BYTES, heapPosition);
+    }
+}
+
+// PartitionManifest class
+// Catalogue of the monthly partitions: for every month the generation of its files, the
+// row count and the totals per category, so reports and budgets can cover months whose
+// rows were never loaded. A compaction writes new partition files first and commits them
+// by replacing the manifest, so a crash in between leaves the previous set in effect.
+class PartitionManifest {
+    static final int MAGIC = 0x50464D4D; // "PFMM"
+    static final int VERSION = 1;
+
+    static class Entry {
+        final int month;
+        final int generation;
+        final int rows;
+        final long income;
+        final long expenses;
+        // category name -> { income cents, expense cents }
+        final Map<String, long[]> categories;
+
+        Entry(int month, int generation, int rows, long income, long expenses, Map<String, long[]> categories) {
+            this.month = month;
+            this.generation = generation;
+            this.rows = rows;
+            this.income = income;
+            this.expenses = expenses;
+            this.categories = categories;
+        }
+
+        String fileName() {
+            return PartitionManifest.fileName(month, generation);
+        }
+    }
+
+    private final TreeMap<Integer, Entry> entries = new TreeMap<>();
+
+    // Base name of a partition's files, e.g. "2025-03-1f2e3d4c"
+    static String fileName(int month, int generation) {
+        return String.format("%s-%08x", Ledger.yearMonth(month), generation);
+    }
+
+    public static Entry summarize(int month, int generation, Ledger ledger, int[] rows) {
+        long income = 0;
+        long expenses = 0;
+        Map<String, long[]> categories = new TreeMap<>();
+        for (int row : rows) {
+            long cents = ledger.cents(row);
+            long[] totals = categories.computeIfAbsent(ledger.category(row), c -> new long[2]);
+            if (ledger.typeColumn()[row] == Ledger.INCOME) {
+                income = Math.addExact(income, cents);
+                totals[0] = Math.addExact(totals[0], cents);
+            } else {
+                expenses = Math.addExact(expenses, cents);
+                totals[1] = Math.addExact(totals[1], cents);
             }
-            
-            List<String> lines = Files.readAllLines(Paths.get(BUDGETS_FILE));
-            for (String encryptedLine : lines) {
-                String decryptedLine = simpleDecrypt(encryptedLine);
-                Budget budget = Budget.fromFileString(decryptedLine);
-                if (budget != null) {
-                    budgets.add(budget);
-                }
+        }
+        return new Entry(month, generation, rows.length, income, expenses, categories);
+    }
+
+    public Collection<Entry> entries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    public void put(Entry entry) {
+        entries.put(entry.month, entry);
+    }
+
+    public void remove(int month) {
+        entries.remove(month);
+    }
+
+    public PartitionManifest copy() {
+        PartitionManifest copy = new PartitionManifest();
+        copy.entries.putAll(entries);
+        return copy;
+    }
+
+    // Persistence; the file as a whole is encrypted by CipherFile
+    public byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(entries.size());
+        for (Entry entry : entries.values()) {
+            out.writeInt(entry.month);
+            out.writeInt(entry.generation);
+            out.writeInt(entry.rows);
+            out.writeLong(entry.income);
+            out.writeLong(entry.expenses);
+            out.writeInt(entry.categories.size());
+            for (Map.Entry<String, long[]> category : entry.categories.entrySet()) {
+                out.writeUTF(category.getKey());
+                out.writeLong(category.getValue()[0]);
+                out.writeLong(category.getValue()[1]);
             }
-        } catch (IOException e) {
-            System.out.println("Warning: Could not load budgets file");
         }
-        return budgets;
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public static PartitionManifest fromBytes(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Unsupported partition manifest");
+        }
+        PartitionManifest manifest = new PartitionManifest();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int month = in.readInt();
+            int generation = in.readInt();
+            int rows = in.readInt();
+            long income = in.readLong();
+            long expenses = in.readLong();
+            int categoryCount = in.readInt();
+            Map<String, long[]> categories = new TreeMap<>();
+            for (int c = 0; c < categoryCount; c++) {
+                categories.put(in.readUTF(), new long[] { in.readLong(), in.readLong() });
+            }
+            manifest.put(new Entry(month, generation, rows, income, expenses, categories));
+        }
+        return manifest;
     }
 }
 
-// Main PersonalFinanceManager class
-public class PersonalFinanceManager {
-    private List<Transaction> transactions;
-    private List<Budget> budgets;
-    private Scanner scanner;
+// TransactionStore class
+// Read-only view of a snapshot, held either as a plain buffer or as an encrypted partition
+// file that is decrypted a frame at a time. Strings are decoded only when they are
+// accessed, so ids and descriptions never have to be held on the heap. The fixed width
+// columns are copied out in bulk for the in-memory ledger.
+class TransactionStore {
+    // Bytes [position, position + length) of the snapshot as a buffer of their own
+    private interface Source {
+        ByteBuffer slice(int position, int length);
+    }
 
-    public PersonalFinanceManager() {
-        this.transactions = FileManager.loadTransactions();
-        this.budgets = FileManager.loadBudgets();
-        this.scanner = new Scanner(System.in);
-        updateBudgetSpending();
+    private final Source snapshot;
+    private final SnapshotFormat.Layout layout;
+    private final int generation;
+    private final String[] categories;
+
+    private TransactionStore(Source snapshot, SnapshotFormat.Layout layout, int generation) {
+        this.snapshot = snapshot;
+        this.layout = layout;
+        this.generation = generation;
+        this.categories = new String[layout.categories];
+        for (int i = 0; i < layout.categories; i++) {
+            categories[i] = readString(layout.categoryOffsetsOffset, layout.categoryHeapOffset, i);
+        }
     }
 
-    public void run() {
-        System.out.println("Welcome to Personal Finance Manager!");
-        System.out.println("Your data is securely loaded. " + transactions.size() + " transactions found.");
+    public static TransactionStore open(ByteBuffer snapshot) throws IOException {
+        return open((position, length) -> {
+            ByteBuffer view = snapshot.duplicate();
+            view.position(position);
+            view.limit(position + length);
+            return view.slice();
+        }, snapshot.limit());
+    }
 
-        while (true) {
-            displayMainMenu();
-            String choice = scanner.nextLine().trim();
+    public static TransactionStore open(CipherFile.Reader reader) throws IOException {
+        return open(reader::slice, reader.size());
+    }
 
-            try {
-                switch (choice) {
-                    case "1":
-                        transactionManagement();
-                        break;
-                    case "2":
-                        financialAnalytics();
-                        break;
-                    case "3":
-                        budgetPlanning();
-                        break;
-                    case "4":
-                        System.out.println("Saving your data...");
-                        FileManager.saveTransactions(transactions);
-                        FileManager.saveBudgets(budgets);
-                        System.out.println("Thank you for using Personal Finance Manager!");
-                        return;
-                    default:
-                        System.out.println("Invalid choice. Please enter 1-4.");
-                }
-            } catch (Exception e) {
-                System.out.println("Unexpected error: " + e.getMessage());
-                System.out.println("Please try again.");
-            }
+    private static TransactionStore open(Source snapshot, int size) throws IOException {
+        if (size < SnapshotFormat.HEADER_BYTES) {
+            throw new IOException("Truncated snapshot");
+        }
+        ByteBuffer header = snapshot.slice(0, SnapshotFormat.HEADER_BYTES);
+        SnapshotFormat.Layout layout = SnapshotFormat.Layout.fromHeader(header);
+        if (layout.totalBytes > size) {
+            throw new IOException("Truncated snapshot");
+        }
+        return new TransactionStore(snapshot, layout, SnapshotFormat.generation(header));
+    }
+
+    public int rows() {
+        return layout.rows;
+    }
+
+    public int generation() {
+        return generation;
+    }
+
+    public String[] categories() {
+        return categories.clone();
+    }
+
+    // Row access
+    public String id(int row) {
+        return readString(layout.idOffsetsOffset, layout.idHeapOffset, row);
+    }
+
+    public String description(int row) {
+        return readString(layout.descriptionOffsetsOffset, layout.descriptionHeapOffset, row);
+    }
+
+    // Bulk column copies into the target arrays starting at the given row
+    public void readColumns(long[] cents, int[] days, byte[] types, int[] categoryIds, int offset) {
+        int rows = layout.rows;
+        snapshot.slice(layout.centsOffset, rows * Long.BYTES).asLongBuffer().get(cents, offset, rows);
+
+        long[] words = new long[SnapshotFormat.typeWords(rows)];
+        snapshot.slice(layout.typesOffset, words.length * Long.BYTES).asLongBuffer().get(words);
+        for (int i = 0; i < rows; i++) {
+            types[offset + i] = (words[i >>> 6] & (1L << i)) != 0 ? Ledger.INCOME : Ledger.EXPENSE;
+        }
+
+        snapshot.slice(layout.daysOffset, rows * Integer.BYTES).asIntBuffer().get(days, offset, rows);
+        snapshot.slice(layout.categoryIdsOffset, rows * Integer.BYTES).asIntBuffer().get(categoryIds, offset, rows);
+    }
+
+    private String readString(int offsetsOffset, int heapOffset, int index) {
+        ByteBuffer offsets = snapshot.slice(offsetsOffset + index * Integer.BYTES, 2 * Integer.BYTES);
+        int start = offsets.getInt(0);
+        byte[] bytes = new byte[offsets.getInt(Integer.BYTES) - start];
+        snapshot.slice(heapOffset + start, bytes.length).get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+// CategoryDictionary class
+// Interns category names to dense int ids so rows can reference them by number
+class CategoryDictionary {
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    public int intern(String category) {
+        Integer id = ids.get(category);
+        if (id == null) {
+            id = names.size();
+            ids.put(category, id);
+            names.add(category);
+        }
+        return id;
+    }
+
+    public int idOf(String category) {
+        Integer id = ids.get(category);
+        return id == null ? -1 : id;
+    }
+
+    public String name(int id) {
+        return names.get(id);
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    public CategoryDictionary copy() {
+        CategoryDictionary copy = new CategoryDictionary();
+        for (String name : names) {
+            copy.intern(name);
+        }
+        return copy;
+    }
+}
+
+// Ledger class
+// Struct-of-arrays transaction ledger. Each row is a slot in parallel primitive columns;
+// ids and descriptions of partition rows are read lazily from the partition's store, only
+// rows added since the partitions were written keep their strings on the heap. Deleted
+// rows are tombstoned by their type so that row numbers stay stable. Partitions that were
+// not loaded at startup are attached on demand; their rows go after the existing ones.
+class Ledger {
+    static final byte EXPENSE = 0;
+    static final byte INCOME = 1;
+    static final byte DELETED = -1;
+    // Month of a store that is not a monthly partition, such as a pre-partition snapshot
+    static final int NO_MONTH = Integer.MIN_VALUE;
+
+    // Rows [firstRow, firstRow + store.rows()) read their strings from the store
+    static class Segment {
+        final int month;
+        final TransactionStore store;
+        final IdIndex index;
+        final int firstRow;
+
+        Segment(int month, TransactionStore store, IdIndex index, int firstRow) {
+            this.month = month;
+            this.store = store;
+            this.index = index;
+            this.firstRow = firstRow;
+        }
+    }
+
+    // Opens the files of a partition and attaches them to the ledger
+    interface PartitionLoader {
+        void load(Ledger ledger, PartitionManifest.Entry entry);
+    }
+
+    // Told about every partition attached, so that indexes over the rows can catch up
+    interface AttachListener {
+        void attached(int month, int firstRow, TransactionStore store);
+    }
+
+    private final CategoryDictionary categories;
+    private final List<Segment> segments = new ArrayList<>();
+    private final NavigableMap<Integer, PartitionManifest.Entry> unloaded = new TreeMap<>();
+    private PartitionLoader loader;
+    private int unloadedRows;
+    private final List<AttachListener> listeners = new ArrayList<>();
+    // Months with rows added or deleted since the last snapshot()
+    private Set<Integer> dirtyMonths = new HashSet<>();
+    private final Map<String, Integer> heapRows = new HashMap<>();
+    private long[] cents;
+    private int[] days;
+    private byte[] types;
+    private int[] categoryIds;
+    // Strings of rows added in memory; null for rows that live in a segment
+    private String[] heapIds;
+    private String[] heapDescriptions;
+    private int rowLimit;
+    private int deletedCount;
+
+    private Ledger(CategoryDictionary categories, int capacity) {
+        this.categories = categories;
+        this.cents = new long[capacity];
+        this.days = new int[capacity];
+        this.types = new byte[capacity];
+        this.categoryIds = new int[capacity];
+        this.heapIds = new String[capacity];
+        this.heapDescriptions = new String[capacity];
+    }
+
+    public static Ledger empty() {
+        return new Ledger(new CategoryDictionary(), 16);
+    }
+
+    // Ledger over a single store that is not a monthly partition
+    public static Ledger load(TransactionStore store) {
+        Ledger ledger = empty();
+        ledger.attach(NO_MONTH, store, null);
+        return ledger;
+    }
+
+    // Frozen copy for background compaction. Segments and stores are shared, the dirty
+    // months move to the copy, and partitions still unloaded can be opened by the copy
+    // without affecting this ledger. Id lookups are not supported on the copy.
+    public Ledger snapshot() {
+        Ledger copy = new Ledger(categories.copy(), 0);
+        copy.cents = Arrays.copyOf(cents, rowLimit);
+        copy.days = Arrays.copyOf(days, rowLimit);
+        copy.types = Arrays.copyOf(types, rowLimit);
+        copy.categoryIds = Arrays.copyOf(categoryIds, rowLimit);
+        copy.heapIds = Arrays.copyOf(heapIds, rowLimit);
+        copy.heapDescriptions = Arrays.copyOf(heapDescriptions, rowLimit);
+        copy.rowLimit = rowLimit;
+        copy.deletedCount = deletedCount;
+        copy.segments.addAll(segments);
+        copy.unloaded.putAll(unloaded);
+        copy.unloadedRows = unloadedRows;
+        copy.loader = loader;
+        copy.dirtyMonths = dirtyMonths;
+        dirtyMonths = new HashSet<>();
+        return copy;
+    }
+
+    // Columns for tight loops; arrays are replaced when the ledger grows
+    long[] centsColumn() { return cents; }
+    int[] dayColumn() { return days; }
+    byte[] typeColumn() { return types; }
+    int[] categoryColumn() { return categoryIds; }
+    CategoryDictionary categories() { return categories; }
+
+    public int rowLimit() { return rowLimit; }
+    // Live rows, counting those of partitions not loaded yet
+    public int size() { return rowLimit - deletedCount + unloadedRows; }
+    public boolean isEmpty() { return size() == 0; }
+    public boolean isLive(int row) { return types[row] != DELETED; }
+
+    // Row access
+    public long cents(int row) { return cents[row]; }
+    public Money amount(int row) { return Money.ofCents(cents[row]); }
+    public int epochDay(int row) { return days[row]; }
+    public LocalDate date(int row) { return LocalDate.ofEpochDay(days[row]); }
+    public String category(int row) { return categories.name(categoryIds[row]); }
+
+    public TransactionType type(int row) {
+        return types[row] == INCOME ? TransactionType.INCOME : TransactionType.EXPENSE;
+    }
+
+    public String id(int row) {
+        if (heapIds[row] != null) return heapIds[row];
+        Segment segment = segmentOf(row);
+        return segment.store.id(row - segment.firstRow);
+    }
+
+    public String description(int row) {
+        if (heapIds[row] != null) return heapDescriptions[row];
+        Segment segment = segmentOf(row);
+        return segment.store.description(row - segment.firstRow);
+    }
+
+    public Transaction get(int row) {
+        return new Transaction(id(row), type(row), amount(row), category(row), description(row), date(row));
+    }
+
+    private Segment segmentOf(int row) {
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Segment segment = segments.get(mid);
+            if (row < segment.firstRow) {
+                high = mid - 1;
+            } else if (row >= segment.firstRow + segment.store.rows()) {
+                low = mid + 1;
+            } else {
+                return segment;
+            }
+        }
+        throw new IllegalStateException("Row " + row + " is not in any segment");
+    }
+
+    List<Segment> segments() {
+        return Collections.unmodifiableList(segments);
+    }
+
+    // Looks in memory first, then opens unloaded partitions newest first until it turns up
+    public int rowOf(String id) {
+        Integer heap = heapRows.get(id);
+        if (heap != null) {
+            return heap;
+        }
+        for (Segment segment : segments) {
+            int row = find(segment, id);
+            if (row != -1) return Math.max(row, -1);
+        }
+        while (!unloaded.isEmpty()) {
+            open(unloaded.lastEntry().getValue());
+            int row = find(segments.get(segments.size() - 1), id);
+            if (row != -1) return Math.max(row, -1);
+        }
+        return -1;
+    }
+
+    // Lookup confined to the partition of the given month, for ids whose date is known
+    public int rowOf(String id, int month) {
+        loadMonths(month, month);
+        Integer heap = heapRows.get(id);
+        if (heap != null) {
+            return heap;
+        }
+        for (Segment segment : segments) {
+            if (segment.month != month && segment.month != NO_MONTH) continue;
+            int row = find(segment, id);
+            if (row != -1) return Math.max(row, -1);
+        }
+        return -1;
+    }
+
+    // Row of the id in the segment, -1 if absent and -2 if present but deleted
+    private int find(Segment segment, String id) {
+        if (segment.index == null) return -1;
+        int row = segment.index.find(id, segment.store::id);
+        if (row < 0) return -1;
+        return isLive(segment.firstRow + row) ? segment.firstRow + row : -2;
+    }
+
+    // Partitions
+    void setPartitions(Collection<PartitionManifest.Entry> entries, PartitionLoader loader) {
+        for (PartitionManifest.Entry entry : entries) {
+            unloaded.put(entry.month, entry);
+            unloadedRows += entry.rows;
+        }
+        this.loader = loader;
+    }
+
+    void addAttachListener(AttachListener listener) {
+        listeners.add(listener);
+    }
+
+    // Manifest entries of the partitions whose rows are not in memory
+    Collection<PartitionManifest.Entry> unloadedPartitions() {
+        return Collections.unmodifiableCollection(unloaded.values());
+    }
+
+    public void loadMonths(int fromMonth, int toMonth) {
+        if (fromMonth > toMonth) return;
+        for (PartitionManifest.Entry entry : new ArrayList<>(unloaded.subMap(fromMonth, true, toMonth, true).values())) {
+            open(entry);
+        }
+    }
+
+    // A partition that fails to load stays unloaded, so a save of its month loads it again
+    // (and fails) rather than replacing it with the month's new rows alone
+    private void open(PartitionManifest.Entry entry) {
+        unloaded.remove(entry.month);
+        unloadedRows -= entry.rows;
+        try {
+            loader.load(this, entry);
+        } catch (RuntimeException e) {
+            unloaded.put(entry.month, entry);
+            unloadedRows += entry.rows;
+            throw e;
+        }
+    }
+
+    public void loadAll() {
+        loadMonths(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    public boolean hasUnloaded(int fromMonth, int toMonth) {
+        return fromMonth <= toMonth && !unloaded.subMap(fromMonth, true, toMonth, true).isEmpty();
+    }
+
+    // Appends the rows of a store; category ids are renumbered into this ledger's dictionary
+    public int attach(int month, TransactionStore store, IdIndex index) {
+        int firstRow = rowLimit;
+        int rows = store.rows();
+        ensureCapacity(firstRow + rows);
+        store.readColumns(cents, days, types, categoryIds, firstRow);
+        String[] names = store.categories();
+        int[] remap = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            remap[i] = categories.intern(names[i]);
+        }
+        for (int row = firstRow; row < firstRow + rows; row++) {
+            categoryIds[row] = remap[categoryIds[row]];
+        }
+        rowLimit += rows;
+        segments.add(new Segment(month, store, index, firstRow));
+        for (AttachListener listener : listeners) {
+            listener.attached(month, firstRow, store);
+        }
+        return firstRow;
+    }
+
+    Set<Integer> dirtyMonths() {
+        return dirtyMonths;
+    }
+
+    void markAllDirty() {
+        for (int row = 0; row < rowLimit; row++) {
+            if (isLive(row)) dirtyMonths.add(monthIndex(days[row]));
+        }
+    }
+
+    // Live rows of each of the given months, in row order
+    Map<Integer, int[]> rowsByMonth(Set<Integer> months) {
+        Map<Integer, int[]> rows = new HashMap<>();
+        int lastDay = Integer.MIN_VALUE;
+        int month = 0;
+        for (int row = 0; row < rowLimit; row++) {
+            if (!isLive(row)) continue;
+            if (days[row] != lastDay) {
+                lastDay = days[row];
+                month = monthIndex(lastDay);
+            }
+            if (!months.contains(month)) continue;
+            int[] bucket = rows.computeIfAbsent(month, m -> new int[4]);
+            if (bucket[0] + 1 == bucket.length) {
+                bucket = Arrays.copyOf(bucket, bucket.length * 2);
+                rows.put(month, bucket);
+            }
+            bucket[++bucket[0]] = row;
+        }
+        for (Map.Entry<Integer, int[]> entry : rows.entrySet()) {
+            int[] bucket = entry.getValue();
+            entry.setValue(Arrays.copyOfRange(bucket, 1, bucket[0] + 1));
+        }
+        return rows;
+    }
+
+    // Mutation
+    private void ensureCapacity(int rows) {
+        if (rows <= cents.length) return;
+        int capacity = Math.max(Math.max(16, rows), cents.length + (cents.length >> 1));
+        cents = Arrays.copyOf(cents, capacity);
+        days = Arrays.copyOf(days, capacity);
+        types = Arrays.copyOf(types, capacity);
+        categoryIds = Arrays.copyOf(categoryIds, capacity);
+        heapIds = Arrays.copyOf(heapIds, capacity);
+        heapDescriptions = Arrays.copyOf(heapDescriptions, capacity);
+    }
+
+    public int add(Transaction transaction) {
+        ensureCapacity(rowLimit + 1);
+        int row = rowLimit++;
+        cents[row] = transaction.getAmount().cents();
+        days[row] = (int) transaction.getDate().toEpochDay();
+        types[row] = transaction.getType() == TransactionType.INCOME ? INCOME : EXPENSE;
+        categoryIds[row] = categories.intern(transaction.getCategory());
+        heapIds[row] = transaction.getId();
+        heapDescriptions[row] = transaction.getDescription();
+        heapRows.put(transaction.getId(), row);
+        dirtyMonths.add(monthIndex(days[row]));
+        return row;
+    }
+
+    public void delete(int row) {
+        if (types[row] != DELETED) {
+            if (heapIds[row] != null) {
+                heapRows.remove(heapIds[row]);
+            }
+            types[row] = DELETED;
+            deletedCount++;
+            dirtyMonths.add(monthIndex(days[row]));
+        }
+    }
+
+    // Year * 12 + (month - 1) for an epoch day, computed without allocating a LocalDate
+    static int monthIndex(int epochDay) {
+        long z = epochDay + 719468L;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long year = yearOfEra + era * 400;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long shiftedMonth = (5 * dayOfYear + 2) / 153;
+        long month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+        if (month <= 2) year++;
+        return (int) (year * 12 + month - 1);
+    }
+
+    static int monthIndex(YearMonth month) {
+        return month.getYear() * 12 + month.getMonthValue() - 1;
+    }
+
+    static int currentMonth() {
+        return monthIndex((int) LocalDate.now().toEpochDay());
+    }
+
+    static YearMonth yearMonth(int monthIndex) {
+        return YearMonth.of(Math.floorDiv(monthIndex, 12), Math.floorMod(monthIndex, 12) + 1);
+    }
+}
+
+// IdIndex class
+// Open-addressing hash table from transaction id to snapshot row, persisted next to the
+// partition snapshot as its .idx file and memory-mapped on startup so it never has to be rebuilt
+// by scanning. Slots hold a 64-bit hash of the id and the row + 1 (0 marks an empty slot);
+// a matching hash is confirmed against the id stored in the ledger.
+class IdIndex {
+    static final int MAGIC = 0x50464D49; // "PFMI"
+    static final int HEADER_BYTES = 16;
+
+    private final ByteBuffer table;
+    private final int capacity;
+    private final int rowsOffset;
+
+    private IdIndex(ByteBuffer table) {
+        this.table = table;
+        this.capacity = table.getInt(12);
+        this.rowsOffset = HEADER_BYTES + capacity * Long.BYTES;
+    }
+
+    // Returns null when the buffer was not built for the given snapshot
+    public static IdIndex open(ByteBuffer table, int generation, int rows) {
+        if (table.capacity() < HEADER_BYTES || table.getInt(0) != MAGIC
+                || table.getInt(4) != generation || table.getInt(8) != rows) {
+            return null;
+        }
+        IdIndex index = new IdIndex(table);
+        if (table.capacity() < index.rowsOffset + index.capacity * Integer.BYTES) {
+            return null;
+        }
+        return index;
+    }
+
+    public static ByteBuffer build(int rows, IntFunction<String> ids, int generation) {
+        int capacity = Integer.highestOneBit(Math.max(16, rows * 2 - 1)) << 1;
+        int rowsOffset = HEADER_BYTES + capacity * Long.BYTES;
+        ByteBuffer table = ByteBuffer.allocate(rowsOffset + capacity * Integer.BYTES);
+        table.putInt(0, MAGIC).putInt(4, generation).putInt(8, rows).putInt(12, capacity);
+
+        for (int row = 0; row < rows; row++) {
+            long hash = hash(ids.apply(row));
+            int slot = (int) hash & (capacity - 1);
+            while (table.getInt(rowsOffset + slot * Integer.BYTES) != 0) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            table.putLong(HEADER_BYTES + slot * Long.BYTES, hash);
+            table.putInt(rowsOffset + slot * Integer.BYTES, row + 1);
+        }
+        return table;
+    }
+
+    public int find(String id, IntFunction<String> ids) {
+        long hash = hash(id);
+        int slot = (int) hash & (capacity - 1);
+        while (true) {
+            int row = table.getInt(rowsOffset + slot * Integer.BYTES) - 1;
+            if (row < 0) {
+                return -1;
+            }
+            if (table.getLong(HEADER_BYTES + slot * Long.BYTES) == hash && ids.apply(row).equals(id)) {
+                return row;
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+    }
+
+    // FNV-1a over the UTF-8 bytes followed by a finalizer to spread the low bits
+    static long hash(String id) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : id.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        return hash ^ (hash >>> 33);
+    }
+}
+
+// SearchIndex class
+// Inverted index over lower-cased descriptions: whole tokens for short queries and
+// character trigrams for substring queries. Posting lists are delta-encoded varints in
+// row order. Deleted rows are filtered against the ledger at query time, so a delete does
+// not have to touch the postings. The index is persisted next to the snapshot. Rows are
+// also listed by category id; those lists come from the ledger's category column at load
+// and are not persisted.
+class SearchIndex {
+    static final int MAGIC = 0x50464D53; // "PFMS"
+    static final int HEADER_BYTES = 12;
+
+    // Append-only list of ascending rows
+    static class PostingList {
+        private byte[] data = new byte[4];
+        private int length;
+        private int count;
+        private int last = -1;
+
+        void add(int row) {
+            if (row <= last) return;
+            if (length + 5 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            int delta = row - last;
+            while ((delta & ~0x7F) != 0) {
+                data[length++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            data[length++] = (byte) delta;
+            last = row;
+            count++;
+        }
+
+        // Appends another list shifted by offset rows; only its first delta is re-encoded.
+        // The shifted rows must all come after this list's rows.
+        void append(PostingList other, int offset) {
+            if (other.count == 0) return;
+            int first = 0;
+            int shift = 0;
+            int position = 0;
+            byte b;
+            do {
+                b = other.data[position++];
+                first |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            if (offset + first - 1 <= last) {
+                throw new IllegalStateException("Posting rows from " + (offset + first - 1)
+                    + " appended after row " + last);
+            }
+            add(offset + first - 1);
+            int tail = other.length - position;
+            if (length + tail > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + tail));
+            }
+            System.arraycopy(other.data, position, data, length, tail);
+            length += tail;
+            count += other.count - 1;
+            last = other.last + offset;
+        }
+
+        int[] rows() {
+            int[] rows = new int[count];
+            int position = 0;
+            int row = -1;
+            for (int i = 0; i < count; i++) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[position++];
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                row += delta;
+                rows[i] = row;
+            }
+            return rows;
+        }
+    }
+
+    private final Map<String, PostingList> tokens = new HashMap<>();
+    private final Map<Long, PostingList> trigrams = new HashMap<>();
+    private final Map<Integer, PostingList> categoryRows = new HashMap<>();
+    private int indexedRows;
+
+    public static SearchIndex build(int rows, IntFunction<String> descriptions) {
+        SearchIndex index = new SearchIndex();
+        for (int row = 0; row < rows; row++) {
+            index.index(row, descriptions.apply(row));
+        }
+        return index;
+    }
+
+    public int indexedRows() {
+        return indexedRows;
+    }
+
+    // Merges the index of a partition whose rows start at rowOffset, after every row
+    // indexed so far
+    public void append(SearchIndex part, int rowOffset) {
+        for (Map.Entry<String, PostingList> entry : part.tokens.entrySet()) {
+            tokens.computeIfAbsent(entry.getKey(), t -> new PostingList()).append(entry.getValue(), rowOffset);
+        }
+        for (Map.Entry<Long, PostingList> entry : part.trigrams.entrySet()) {
+            trigrams.computeIfAbsent(entry.getKey(), t -> new PostingList()).append(entry.getValue(), rowOffset);
+        }
+        indexedRows = Math.max(indexedRows, rowOffset + part.indexedRows);
+    }
+
+    public void index(int row, String description) {
+        String text = description.toLowerCase();
+        int tokenStart = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean tokenChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (tokenChar && tokenStart < 0) {
+                tokenStart = i;
+            } else if (!tokenChar && tokenStart >= 0) {
+                tokens.computeIfAbsent(text.substring(tokenStart, i), t -> new PostingList()).add(row);
+                tokenStart = -1;
+            }
+            if (i + 3 <= text.length()) {
+                trigrams.computeIfAbsent(trigram(text, i), t -> new PostingList()).add(row);
+            }
+        }
+        indexedRows = Math.max(indexedRows, row + 1);
+    }
+
+    public void indexCategory(int row, int categoryId) {
+        categoryRows.computeIfAbsent(categoryId, id -> new PostingList()).add(row);
+    }
+
+    public void indexCategories(int[] categoryIds, int fromRow, int toRow) {
+        for (int row = fromRow; row < toRow; row++) {
+            indexCategory(row, categoryIds[row]);
+        }
+    }
+
+    private static long trigram(String text, int i) {
+        return ((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2);
+    }
+
+    // Live rows whose category or description contains the (lower-case) term, in row order
+    public int[] search(String term, Ledger ledger) {
+        BitSet matches = new BitSet(ledger.rowLimit());
+
+        // Categories are few, so they are matched by name and their rows read from their lists
+        CategoryDictionary categories = ledger.categories();
+        for (int id = 0; id < categories.size(); id++) {
+            PostingList rows = categoryRows.get(id);
+            if (rows == null || !categories.name(id).toLowerCase().contains(term)) continue;
+            for (int row : rows.rows()) {
+                if (ledger.isLive(row)) matches.set(row);
+            }
+        }
+
+        if (term.length() >= 3) {
+            for (int row : trigramCandidates(term)) {
+                if (ledger.isLive(row) && ledger.description(row).toLowerCase().contains(term)) {
+                    matches.set(row);
+                }
+            }
+        } else if (!term.isEmpty() && isTokenText(term)) {
+            // A short term made of token characters can only occur inside a single token
+            for (Map.Entry<String, PostingList> entry : tokens.entrySet()) {
+                if (!entry.getKey().contains(term)) continue;
+                for (int row : entry.getValue().rows()) {
+                    if (ledger.isLive(row)) matches.set(row);
+                }
+            }
+        } else {
+            for (int row = 0; row < ledger.rowLimit(); row++) {
+                if (ledger.isLive(row) && ledger.description(row).toLowerCase().contains(term)) {
+                    matches.set(row);
+                }
+            }
+        }
+        return matches.stream().toArray();
+    }
+
+    // Intersection of the posting lists of every trigram in the term, smallest list first
+    private int[] trigramCandidates(String term) {
+        List<PostingList> lists = new ArrayList<>();
+        for (int i = 0; i + 3 <= term.length(); i++) {
+            PostingList list = trigrams.get(trigram(term, i));
+            if (list == null) return new int[0];
+            lists.add(list);
+        }
+        lists.sort(Comparator.comparingInt(list -> list.count));
+
+        int[] candidates = lists.get(0).rows();
+        for (int l = 1; l < lists.size() && candidates.length > 0; l++) {
+            int[] other = lists.get(l).rows();
+            int kept = 0;
+            for (int i = 0, j = 0; i < candidates.length && j < other.length; ) {
+                if (candidates[i] < other[j]) {
+                    i++;
+                } else if (candidates[i] > other[j]) {
+                    j++;
+                } else {
+                    candidates[kept++] = candidates[i];
+                    i++;
+                    j++;
+                }
+            }
+            candidates = Arrays.copyOf(candidates, kept);
+        }
+        return candidates;
+    }
+
+    private static boolean isTokenText(String term) {
+        for (int i = 0; i < term.length(); i++) {
+            if (!Character.isLetterOrDigit(term.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    // Persistence; the body after the header is encrypted by FileManager
+    public byte[] toBytes(int generation) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(generation);
+        out.writeInt(indexedRows);
+        out.writeInt(tokens.size());
+        for (Map.Entry<String, PostingList> entry : tokens.entrySet()) {
+            out.writeUTF(entry.getKey());
+            writePostings(out, entry.getValue());
+        }
+        out.writeInt(trigrams.size());
+        for (Map.Entry<Long, PostingList> entry : trigrams.entrySet()) {
+            out.writeLong(entry.getKey());
+            writePostings(out, entry.getValue());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writePostings(DataOutputStream out, PostingList list) throws IOException {
+        out.writeInt(list.count);
+        out.writeInt(list.last);
+        out.writeInt(list.length);
+        out.write(list.data, 0, list.length);
+    }
+
+    // Returns null when the data was not built for the given snapshot
+    public static SearchIndex fromBytes(byte[] data, int generation, int rows) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.length < HEADER_BYTES || in.readInt() != MAGIC || in.readInt() != generation) {
+            return null;
+        }
+        SearchIndex index = new SearchIndex();
+        index.indexedRows = in.readInt();
+        if (index.indexedRows != rows) {
+            return null;
+        }
+        int tokenCount = in.readInt();
+        for (int i = 0; i < tokenCount; i++) {
+            index.tokens.put(in.readUTF(), readPostings(in));
+        }
+        int trigramCount = in.readInt();
+        for (int i = 0; i < trigramCount; i++) {
+            index.trigrams.put(in.readLong(), readPostings(in));
+        }
+        return index;
+    }
+
+    private static PostingList readPostings(DataInputStream in) throws IOException {
+        PostingList list = new PostingList();
+        list.count = in.readInt();
+        list.last = in.readInt();
+        list.length = in.readInt();
+        list.data = new byte[Math.max(4, list.length)];
+        in.readFully(list.data, 0, list.length);
+        return list;
+    }
+}
+
+// TransactionQuery class
+// Filter over the ledger by date range, type, category set and amount range. Unset
+// criteria match everything; amounts are compared in cents.
+class TransactionQuery {
+    private LocalDate from;
+    private LocalDate to;
+    private TransactionType type;
+    private Set<String> categories;
+    private long minCents = Long.MIN_VALUE;
+    private long maxCents = Long.MAX_VALUE;
+
+    public TransactionQuery from(LocalDate from) { this.from = from; return this; }
+    public TransactionQuery to(LocalDate to) { this.to = to; return this; }
+    public TransactionQuery type(TransactionType type) { this.type = type; return this; }
+    public TransactionQuery minAmount(Money amount) { this.minCents = amount.cents(); return this; }
+    public TransactionQuery maxAmount(Money amount) { this.maxCents = amount.cents(); return this; }
+
+    public TransactionQuery categories(Collection<String> categories) {
+        this.categories = new HashSet<>();
+        for (String category : categories) {
+            this.categories.add(category.toUpperCase());
+        }
+        return this;
+    }
+
+    int fromDay() { return from == null ? Integer.MIN_VALUE : (int) from.toEpochDay(); }
+    int toDay() { return to == null ? Integer.MAX_VALUE : (int) to.toEpochDay(); }
+
+    // Category criteria resolved to a mask over dictionary ids, or null for any category
+    boolean[] categoryMask(CategoryDictionary dictionary) {
+        if (categories == null) return null;
+        boolean[] mask = new boolean[dictionary.size()];
+        for (String category : categories) {
+            int id = dictionary.idOf(category);
+            if (id >= 0) mask[id] = true;
+        }
+        return mask;
+    }
+
+    boolean matches(Ledger ledger, int row, boolean[] categoryMask) {
+        byte rowType = ledger.typeColumn()[row];
+        if (rowType == Ledger.DELETED) return false;
+        if (type != null && rowType != (type == TransactionType.INCOME ? Ledger.INCOME : Ledger.EXPENSE)) return false;
+        if (categoryMask != null && !categoryMask[ledger.categoryColumn()[row]]) return false;
+        long cents = ledger.centsColumn()[row];
+        return cents >= minCents && cents <= maxCents;
+    }
+}
+
+// DateIndex class
+// Rows bucketed by epoch day in a sorted map, so a date range is found in O(log D) and
+// each matching row is visited once. Buckets are appended in row order and deleted rows
+// are skipped through the ledger tombstones.
+class DateIndex {
+    private final TreeMap<Integer, int[]> days = new TreeMap<>();
+    // Bucket arrays are over-allocated; the first slot holds the number of rows in use
+    private int lastDay = Integer.MIN_VALUE;
+    private int[] lastBucket;
+
+    public static DateIndex build(Ledger ledger) {
+        long start = System.nanoTime();
+        DateIndex index = new DateIndex();
+        for (int row = 0; row < ledger.rowLimit(); row++) {
+            if (ledger.isLive(row)) {
+                index.add(row, ledger.epochDay(row));
+            }
+        }
+        Metrics.DATE_INDEX_BUILD.recordSince(start);
+        return index;
+    }
+
+    public void add(int row, int epochDay) {
+        int[] bucket = epochDay == lastDay ? lastBucket : days.get(epochDay);
+        if (bucket == null) {
+            bucket = new int[4];
+        } else if (bucket[0] + 1 == bucket.length) {
+            bucket = Arrays.copyOf(bucket, bucket.length * 2);
+        }
+        bucket[++bucket[0]] = row;
+        if (bucket != lastBucket) {
+            days.put(epochDay, bucket);
+            lastDay = epochDay;
+            lastBucket = bucket;
+        }
+    }
+
+    // Matching rows ordered by date, then by row
+    public int[] query(TransactionQuery query, Ledger ledger) {
+        boolean[] categoryMask = query.categoryMask(ledger.categories());
+        int fromDay = query.fromDay();
+        int toDay = query.toDay();
+        if (fromDay > toDay) return new int[0];
+
+        int[] result = new int[16];
+        int count = 0;
+        for (int[] bucket : days.subMap(fromDay, true, toDay, true).values()) {
+            for (int i = 1; i <= bucket[0]; i++) {
+                int row = bucket[i];
+                if (!query.matches(ledger, row, categoryMask)) continue;
+                if (count == result.length) {
+                    result = Arrays.copyOf(result, count * 2);
+                }
+                result[count++] = row;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+}
+
+// LedgerAggregates class
+// Running totals kept in step with the ledger: overall, per category id and per month.
+// Every add or delete adjusts them once, so reports never rescan the rows.
+class LedgerAggregates {
+    private long totalIncome;
+    private long totalExpenses;
+    private long[] categoryIncome = new long[16];
+    private long[] categoryExpenses = new long[16];
+    // month index -> { income cents, expense cents, row count }
+    private final TreeMap<Integer, long[]> months = new TreeMap<>();
+    // month index -> expense cents by category id, the spending buckets of budget periods
+    private final Map<Integer, long[]> categoryMonths = new HashMap<>();
+
+    // Rows per fork-join leaf; smaller ledgers are scanned on the calling thread
+    static final int CHUNK_ROWS = Integer.getInteger("pfm.analyticsChunk", 1 << 16);
+
+    // Summing is split into row ranges that are scanned in parallel on the common
+    // fork-join pool into primitive partial totals and merged pairwise. Sums of cents are
+    // exact and overflow-checked, so the result does not depend on how the rows were
+    // split. Partitions that are not loaded contribute the totals recorded in the
+    // manifest; their rows are not counted again when they are attached later.
+    public static LedgerAggregates build(Ledger ledger) {
+        long start = System.nanoTime();
+        int rows = ledger.rowLimit();
+        LedgerAggregates aggregates = rows <= CHUNK_ROWS
+            ? scan(ledger, 0, rows)
+            : ForkJoinPool.commonPool().invoke(new ScanTask(ledger, 0, rows));
+        for (PartitionManifest.Entry entry : ledger.unloadedPartitions()) {
+            aggregates.addPartition(entry, ledger.categories());
+        }
+        Metrics.ANALYTICS_BUILD.recordSince(start);
+        return aggregates;
+    }
+
+    private static class ScanTask extends RecursiveTask<LedgerAggregates> {
+        private static final long serialVersionUID = 1L;
+        private final transient Ledger ledger;
+        private final int from;
+        private final int to;
+
+        ScanTask(Ledger ledger, int from, int to) {
+            this.ledger = ledger;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected LedgerAggregates compute() {
+            if (to - from <= CHUNK_ROWS) {
+                return scan(ledger, from, to);
+            }
+            int middle = (from + to) >>> 1;
+            ScanTask left = new ScanTask(ledger, from, middle);
+            left.fork();
+            LedgerAggregates right = new ScanTask(ledger, middle, to).compute();
+            LedgerAggregates merged = left.join();
+            merged.merge(right);
+            return merged;
+        }
+    }
+
+    // Totals of the live rows in [from, to), read straight from the columns
+    static LedgerAggregates scan(Ledger ledger, int from, int to) {
+        LedgerAggregates aggregates = new LedgerAggregates();
+        aggregates.ensureCategory(ledger.categories().size() - 1);
+        long[] cents = ledger.centsColumn();
+        int[] days = ledger.dayColumn();
+        byte[] types = ledger.typeColumn();
+        int[] categoryIds = ledger.categoryColumn();
+        long[] categoryIncome = aggregates.categoryIncome;
+        long[] categoryExpenses = aggregates.categoryExpenses;
+        // Neighbouring rows mostly share a day, so the month totals are looked up per day
+        int lastDay = Integer.MIN_VALUE;
+        long[] month = null;
+        long[] monthCategories = null;
+        for (int row = from; row < to; row++) {
+            byte type = types[row];
+            if (type == Ledger.DELETED) continue;
+            if (days[row] != lastDay) {
+                lastDay = days[row];
+                int monthIndex = Ledger.monthIndex(lastDay);
+                month = aggregates.months.computeIfAbsent(monthIndex, m -> new long[3]);
+                monthCategories = aggregates.categoryMonth(monthIndex);
+            }
+            long amount = cents[row];
+            int categoryId = categoryIds[row];
+            if (type == Ledger.INCOME) {
+                categoryIncome[categoryId] = Math.addExact(categoryIncome[categoryId], amount);
+                month[0] = Math.addExact(month[0], amount);
+            } else {
+                categoryExpenses[categoryId] = Math.addExact(categoryExpenses[categoryId], amount);
+                monthCategories[categoryId] = Math.addExact(monthCategories[categoryId], amount);
+                month[1] = Math.addExact(month[1], amount);
+            }
+            month[2]++;
+        }
+        aggregates.totalIncome = Money.sumWhere(cents, types, Ledger.INCOME, from, to);
+        aggregates.totalExpenses = Money.sumWhere(cents, types, Ledger.EXPENSE, from, to);
+        return aggregates;
+    }
+
+    private void merge(LedgerAggregates other) {
+        totalIncome = Math.addExact(totalIncome, other.totalIncome);
+        totalExpenses = Math.addExact(totalExpenses, other.totalExpenses);
+        ensureCategory(other.categoryIncome.length - 1);
+        for (int id = 0; id < other.categoryIncome.length; id++) {
+            categoryIncome[id] = Math.addExact(categoryIncome[id], other.categoryIncome[id]);
+            categoryExpenses[id] = Math.addExact(categoryExpenses[id], other.categoryExpenses[id]);
+        }
+        for (Map.Entry<Integer, long[]> entry : other.months.entrySet()) {
+            long[] month = months.computeIfAbsent(entry.getKey(), m -> new long[3]);
+            for (int i = 0; i < month.length; i++) {
+                month[i] = Math.addExact(month[i], entry.getValue()[i]);
+            }
+        }
+        for (Map.Entry<Integer, long[]> entry : other.categoryMonths.entrySet()) {
+            long[] expenses = categoryMonth(entry.getKey());
+            for (int id = 0; id < entry.getValue().length; id++) {
+                expenses[id] = Math.addExact(expenses[id], entry.getValue()[id]);
+            }
+        }
+    }
+
+    private void addPartition(PartitionManifest.Entry entry, CategoryDictionary categories) {
+        for (Map.Entry<String, long[]> category : entry.categories.entrySet()) {
+            int categoryId = categories.intern(category.getKey());
+            ensureCategory(categoryId);
+            categoryIncome[categoryId] = Math.addExact(categoryIncome[categoryId], category.getValue()[0]);
+            categoryExpenses[categoryId] = Math.addExact(categoryExpenses[categoryId], category.getValue()[1]);
+            long[] expenses = categoryMonth(entry.month);
+            expenses[categoryId] = Math.addExact(expenses[categoryId], category.getValue()[1]);
+        }
+        totalIncome = Math.addExact(totalIncome, entry.income);
+        totalExpenses = Math.addExact(totalExpenses, entry.expenses);
+        long[] month = months.computeIfAbsent(entry.month, m -> new long[3]);
+        month[0] = Math.addExact(month[0], entry.income);
+        month[1] = Math.addExact(month[1], entry.expenses);
+        month[2] += entry.rows;
+    }
+
+    // Call before the row is tombstoned in the ledger
+    public void add(Ledger ledger, int row) {
+        apply(ledger, row, 1);
+    }
+
+    public void subtract(Ledger ledger, int row) {
+        apply(ledger, row, -1);
+    }
+
+    private void apply(Ledger ledger, int row, int sign) {
+        long cents = Math.multiplyExact(sign, ledger.cents(row));
+        int categoryId = ledger.categoryColumn()[row];
+        boolean income = ledger.typeColumn()[row] == Ledger.INCOME;
+        ensureCategory(categoryId);
+
+        int monthIndex = Ledger.monthIndex(ledger.epochDay(row));
+        long[] month = months.computeIfAbsent(monthIndex, m -> new long[3]);
+        if (income) {
+            totalIncome = Math.addExact(totalIncome, cents);
+            categoryIncome[categoryId] = Math.addExact(categoryIncome[categoryId], cents);
+            month[0] = Math.addExact(month[0], cents);
+        } else {
+            totalExpenses = Math.addExact(totalExpenses, cents);
+            categoryExpenses[categoryId] = Math.addExact(categoryExpenses[categoryId], cents);
+            long[] expenses = categoryMonth(monthIndex);
+            expenses[categoryId] = Math.addExact(expenses[categoryId], cents);
+            month[1] = Math.addExact(month[1], cents);
+        }
+        month[2] += sign;
+    }
+
+    private void ensureCategory(int categoryId) {
+        if (categoryId >= categoryIncome.length) {
+            int capacity = Math.max(categoryId + 1, categoryIncome.length * 2);
+            categoryIncome = Arrays.copyOf(categoryIncome, capacity);
+            categoryExpenses = Arrays.copyOf(categoryExpenses, capacity);
+        }
+    }
+
+    // Expense bucket of a month, sized for every category id known so far
+    private long[] categoryMonth(int month) {
+        long[] expenses = categoryMonths.get(month);
+        if (expenses == null || expenses.length < categoryExpenses.length) {
+            expenses = expenses == null ? new long[categoryExpenses.length]
+                : Arrays.copyOf(expenses, categoryExpenses.length);
+            categoryMonths.put(month, expenses);
+        }
+        return expenses;
+    }
+
+    public long totalIncome() { return totalIncome; }
+    public long totalExpenses() { return totalExpenses; }
+
+    public long categoryIncome(int categoryId) {
+        return categoryId < categoryIncome.length ? categoryIncome[categoryId] : 0;
+    }
+
+    public long categoryExpenses(int categoryId) {
+        return categoryId < categoryExpenses.length ? categoryExpenses[categoryId] : 0;
+    }
+
+    public long categoryExpenses(int categoryId, int month) {
+        long[] expenses = categoryMonths.get(month);
+        return expenses == null || categoryId < 0 || categoryId >= expenses.length ? 0 : expenses[categoryId];
+    }
+
+    // Months that still hold live rows, oldest first, as { month index, income, expenses }
+    public List<long[]> monthlyTotals() {
+        List<long[]> totals = new ArrayList<>();
+        for (Map.Entry<Integer, long[]> entry : months.entrySet()) {
+            long[] month = entry.getValue();
+            if (month[2] > 0) {
+                totals.add(new long[] { entry.getKey(), month[0], month[1] });
+            }
+        }
+        return totals;
+    }
+}
+
+// CipherFile class
+// Authenticated encryption for the data files, after the STREAM construction: AES-GCM over
+// frames that each authenticate the file header, their index in the file and whether they
+// are the last one. Frames that are reordered, dropped, cut off after a whole frame or
+// moved in from another file (every header carries a random file id) fail to decrypt.
+// Files are either sealed, written whole with a final last frame, or appendable like the
+// journal, which grows by a frame per commit and so never has a final frame; losing whole
+// frames off its end looks like losing commits that were never synced. The key comes from
+// PBKDF2 over the passphrase and a salt stored in the clear header.
+// Layout: "PFME", version, flags, 16-byte salt, 16-byte file id, then frames of
+// [plain length][12-byte nonce][ciphertext + 16-byte tag].
+// Version 1 files authenticated only the header and may use the old built-in passphrase;
+// they are still read so that they can be rewritten in the current format.
+class CipherFile {
+    static final int MAGIC = 0x50464D45; // "PFME"
+    static final int VERSION = 2;
+    static final int LEGACY_VERSION = 1;
+    static final int SALT_BYTES = 16;
+    static final int FILE_ID_BYTES = 16;
+    static final int HEADER_BYTES = 3 * Integer.BYTES + SALT_BYTES + FILE_ID_BYTES;
+    static final int LEGACY_HEADER_BYTES = 2 * Integer.BYTES + SALT_BYTES;
+    // Header flag of files written whole
+    static final int SEALED = 1;
+    static final int NONCE_BYTES = 12;
+    static final int TAG_BYTES = 16;
+    static final int FRAME_OVERHEAD = Integer.BYTES + NONCE_BYTES + TAG_BYTES;
+    // Frames are also the unit a Reader decrypts
+    static final int FRAME_BYTES = 1 << 16;
+    private static final long FRAME_CACHE_BYTES = Long.getLong("pfm.frameCacheBytes", 16L << 20);
+    private static final int KEY_ITERATIONS = 100_000;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static char[] passphrase;
+    private static char[] legacyPassphrase;
+    // Derived keys by passphrase and salt; new files reuse the first salt seen so a run
+    // derives one key. File ids, not salts, tell files apart.
+    private static final Map<String, SecretKey> KEYS = new HashMap<>();
+    private static byte[] currentSalt;
+    // Appendable files by path: { file id hash, size, frames } as of the last append, so an
+    // append does not walk the file to learn the index of its frame
+    private static final Map<Path, long[]> APPENDED = new HashMap<>();
+    // Decrypted frames of open Readers by reader and frame, least recently used first
+    private static final LinkedHashMap<Long, ByteBuffer> FRAME_CACHE = new LinkedHashMap<>(64, 0.75f, true);
+    private static long cachedBytes;
+    private static long readers;
+
+    static synchronized void usePassphrase(String value) {
+        passphrase = value.toCharArray();
+        KEYS.clear();
+    }
+
+    // Only tried on version 1 files that do not decrypt with the passphrase
+    static synchronized void useLegacyPassphrase(String value) {
+        legacyPassphrase = value.toCharArray();
+    }
+
+    static synchronized boolean hasPassphrase() {
+        return passphrase != null;
+    }
+
+    static boolean isEncrypted(Path file) throws IOException {
+        if (!Files.exists(file) || Files.size(file) < LEGACY_HEADER_BYTES) return false;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            return in.readInt() == MAGIC;
+        }
+    }
+
+    // Replaces the file with the remaining bytes of plain, split into FRAME_BYTES frames.
+    // Not synced; files renamed over live data are synced by FileManager.replaceAtomically.
+    public static void write(Path file, ByteBuffer plain) throws IOException {
+        ByteBuffer header = newHeader(SEALED);
+        SecretKey key = key(passphrase, salt(header));
+        Cipher cipher = cipher();
+        ByteBuffer out = ByteBuffer.allocateDirect(FRAME_OVERHEAD + Math.min(FRAME_BYTES, plain.remaining()));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, header.duplicate());
+            // Even an empty file gets a final frame, so cutting it back to the header shows
+            long index = 0;
+            do {
+                ByteBuffer frame = plain.slice();
+                frame.limit(Math.min(FRAME_BYTES, plain.remaining()));
+                plain.position(plain.position() + frame.limit());
+                out.clear();
+                encryptFrame(cipher, key, header, index++, !plain.hasRemaining(), frame, out);
+                out.flip();
+                writeFully(channel, out);
+            } while (plain.hasRemaining());
+        }
+    }
+
+    // Adds one frame to the end of an appendable file, creating it when needed
+    public static void append(Path file, byte[] plain, boolean sync) throws IOException {
+        synchronized (APPENDED) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer header;
+                long frames;
+                if (channel.size() < HEADER_BYTES) {
+                    header = newHeader(0);
+                    channel.truncate(0);
+                    writeFully(channel, header.duplicate());
+                    frames = 0;
+                } else {
+                    header = ByteBuffer.allocate(HEADER_BYTES);
+                    readFully(channel, header, 0);
+                    header.flip();
+                    checkHeader(header, file);
+                    if (header.getInt(4) != VERSION || (header.getInt(8) & SEALED) != 0) {
+                        throw new IOException("Cannot append to " + file);
+                    }
+                    long[] known = APPENDED.get(file);
+                    frames = known != null && known[0] == fileIdHash(header) && known[1] == channel.size()
+                        ? known[2] : countFrames(channel, HEADER_BYTES);
+                }
+                ByteBuffer out = ByteBuffer.allocate(FRAME_OVERHEAD + plain.length);
+                encryptFrame(cipher(), key(passphrase, salt(header)), header, frames, false, ByteBuffer.wrap(plain), out);
+                out.flip();
+                channel.position(channel.size());
+                writeFully(channel, out);
+                if (sync) {
+                    channel.force(false);
+                }
+                APPENDED.put(file, new long[] { fileIdHash(header), channel.size(), frames + 1 });
+            }
+        }
+    }
+
+    // Decrypts the whole file into one buffer. A frame that fails authentication means a
+    // wrong passphrase or a tampered file and is reported as IllegalStateException.
+    public static ByteBuffer read(Path file, boolean direct) throws IOException {
+        ByteBuffer data = load(file);
+        ByteBuffer header = header(data);
+        int first = header.limit();
+
+        int plainBytes = 0;
+        int frames = 0;
+        int position = first;
+        for (int length; (length = frameLength(data, position)) >= 0; position += FRAME_OVERHEAD + length) {
+            plainBytes += length;
+            frames++;
+        }
+        if (position != data.limit()) {
+            throw new IOException("Truncated encrypted file: " + file);
+        }
+        if (isSealed(header) && frames == 0) {
+            throw new IllegalStateException("Corrupted file: " + file);
+        }
+
+        ByteBuffer plain = direct ? ByteBuffer.allocateDirect(plainBytes) : ByteBuffer.allocate(plainBytes);
+        Cipher cipher = cipher();
+        SecretKey key = key(data, header, cipher);
+        position = first;
+        int index = 0;
+        for (int length; (length = frameLength(data, position)) >= 0; position += FRAME_OVERHEAD + length) {
+            boolean last = isSealed(header) && index == frames - 1;
+            if (!decryptFrame(cipher, key, header, index++, last, data, position, length, plain)) {
+                throw new IllegalStateException("Wrong passphrase or corrupted file: " + file);
+            }
+        }
+        plain.flip();
+        return plain;
+    }
+
+    // Hands each frame of an appendable file to the consumer in order. Frames that fail
+    // authentication and a partly written last frame are skipped; the number skipped is
+    // returned.
+    public static int readFrames(Path file, Consumer<ByteBuffer> frames) throws IOException {
+        ByteBuffer data = load(file);
+        ByteBuffer header = header(data);
+        Cipher cipher = cipher();
+        SecretKey key = key(data, header, cipher);
+
+        int skipped = 0;
+        int position = header.limit();
+        int index = 0;
+        for (int length; (length = frameLength(data, position)) >= 0; position += FRAME_OVERHEAD + length) {
+            ByteBuffer plain = ByteBuffer.allocate(length);
+            if (decryptFrame(cipher, key, header, index++, false, data, position, length, plain)) {
+                plain.flip();
+                frames.accept(plain);
+            } else {
+                skipped++;
+            }
+        }
+        return position == data.limit() ? skipped : skipped + 1;
+    }
+
+    // Random access to a sealed file without decrypting all of it. The file is mapped and a
+    // frame is decrypted when it is first read, into a cache shared by every reader that
+    // holds at most pfm.frameCacheBytes of plaintext. The last frame is checked at open, so
+    // a file cut short or under another passphrase fails there, not on some later read.
+    static final class Reader {
+        private final Path file;
+        private final ByteBuffer data;
+        private final ByteBuffer header;
+        private final SecretKey key;
+        private final int[] positions; // file position of each frame
+        private final int[] starts; // plain offset of each frame, then the plain size
+        private final long cacheId;
+
+        private Reader(Path file, ByteBuffer data, SecretKey key, int[] positions, int[] starts) {
+            this.file = file;
+            this.data = data;
+            this.header = header(data);
+            this.key = key;
+            this.positions = positions;
+            this.starts = starts;
+            this.cacheId = nextReaderId();
+        }
+
+        public static Reader open(Path file) throws IOException {
+            ByteBuffer data;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("Encrypted file too large: " + file);
+                }
+                data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            checkHeader(data, file);
+            ByteBuffer header = header(data);
+            if (!isSealed(header)) {
+                throw new IOException("Not a sealed encrypted file: " + file);
+            }
+
+            List<Integer> positions = new ArrayList<>();
+            List<Integer> starts = new ArrayList<>();
+            int position = header.limit();
+            int plainBytes = 0;
+            for (int length; (length = frameLength(data, position)) >= 0; position += FRAME_OVERHEAD + length) {
+                positions.add(position);
+                starts.add(plainBytes);
+                plainBytes += length;
+            }
+            if (position != data.limit()) {
+                throw new IOException("Truncated encrypted file: " + file);
+            }
+            if (positions.isEmpty()) {
+                throw new IllegalStateException("Corrupted file: " + file);
+            }
+            starts.add(plainBytes);
+
+            Reader reader = new Reader(file, data, key(passphrase, salt(header)),
+                positions.stream().mapToInt(Integer::intValue).toArray(),
+                starts.stream().mapToInt(Integer::intValue).toArray());
+            reader.frame(positions.size() - 1);
+            return reader;
+        }
+
+        public int size() {
+            return starts[starts.length - 1];
+        }
+
+        // Plain bytes [position, position + length) as a buffer of their own; a range that
+        // crosses frames is copied
+        public ByteBuffer slice(int position, int length) {
+            if (length == 0) return ByteBuffer.allocate(0);
+            int index = frameOf(position);
+            ByteBuffer frame = frame(index);
+            int offset = position - starts[index];
+            if (offset + length <= frame.limit()) {
+                ByteBuffer view = frame.duplicate();
+                view.position(offset);
+                view.limit(offset + length);
+                return view.slice();
+            }
+            ByteBuffer copy = ByteBuffer.allocate(length);
+            while (copy.hasRemaining()) {
+                ByteBuffer view = frame(index).duplicate();
+                view.position(position - starts[index]);
+                view.limit(Math.min(view.limit(), view.position() + copy.remaining()));
+                copy.put(view);
+                position = starts[++index];
+            }
+            copy.flip();
+            return copy;
+        }
+
+        private int frameOf(int position) {
+            if (position < 0 || position >= size()) {
+                throw new IndexOutOfBoundsException("Position " + position + " outside " + file);
+            }
+            int index = Arrays.binarySearch(starts, position);
+            if (index < 0) return -index - 2;
+            // Empty frames share their start with the next one
+            while (starts[index + 1] == position) index++;
+            return index;
+        }
+
+        private ByteBuffer frame(int index) {
+            long cacheKey = cacheId << 32 | index;
+            synchronized (FRAME_CACHE) {
+                ByteBuffer cached = FRAME_CACHE.get(cacheKey);
+                if (cached != null) return cached;
+            }
+            Metrics.FRAMES_DECRYPTED.increment();
+            int length = starts[index + 1] - starts[index];
+            ByteBuffer plain = ByteBuffer.allocate(length);
+            try {
+                boolean last = index == positions.length - 1;
+                if (!decryptFrame(cipher(), key, header, index, last, data, positions[index], length, plain)) {
+                    throw new IllegalStateException("Wrong passphrase or corrupted file: " + file);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            plain.flip();
+            cacheFrame(cacheKey, plain);
+            return plain;
+        }
+    }
+
+    private static synchronized long nextReaderId() {
+        return ++readers;
+    }
+
+    private static void cacheFrame(long cacheKey, ByteBuffer plain) {
+        synchronized (FRAME_CACHE) {
+            ByteBuffer previous = FRAME_CACHE.put(cacheKey, plain);
+            cachedBytes += plain.limit() - (previous == null ? 0 : previous.limit());
+            Iterator<Map.Entry<Long, ByteBuffer>> eldest = FRAME_CACHE.entrySet().iterator();
+            while (cachedBytes > FRAME_CACHE_BYTES && FRAME_CACHE.size() > 1) {
+                cachedBytes -= eldest.next().getValue().limit();
+                eldest.remove();
+            }
+        }
+    }
+
+    // Cuts off a partly written last frame left by a crash during an append. Only the
+    // length prefixes are read. Returns whether anything was cut.
+    public static boolean truncateTornFrame(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer version = ByteBuffer.allocate(2 * Integer.BYTES);
+            readFully(channel, version, 0);
+            long position = version.getInt(4) == LEGACY_VERSION ? LEGACY_HEADER_BYTES : HEADER_BYTES;
+            long size = channel.size();
+            ByteBuffer prefix = ByteBuffer.allocate(Integer.BYTES);
+            while (position + FRAME_OVERHEAD <= size) {
+                prefix.clear();
+                readFully(channel, prefix, position);
+                int length = prefix.getInt(0);
+                if (length < 0 || position + FRAME_OVERHEAD + length > size) break;
+                position += FRAME_OVERHEAD + length;
+            }
+            if (position >= size) return false;
+            channel.truncate(position);
+            channel.force(false);
+            return true;
+        }
+    }
+
+    // Rewrites a version 1 file in the current format through temp, which the caller moves
+    // into place. Returns false when the file is already current. An appendable file with
+    // frames that do not decrypt is left alone rather than rewritten without them.
+    public static boolean upgrade(Path file, Path temp, boolean appendable) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            if (in.readInt() != MAGIC || in.readInt() != LEGACY_VERSION) return false;
+        }
+        Files.deleteIfExists(temp);
+        if (!appendable) {
+            write(temp, read(file, false));
+            return true;
+        }
+        truncateTornFrame(file);
+        List<byte[]> frames = new ArrayList<>();
+        int skipped = readFrames(file, frame -> {
+            byte[] bytes = new byte[frame.remaining()];
+            frame.get(bytes);
+            frames.add(bytes);
+        });
+        if (skipped > 0) {
+            throw new IOException("Unreadable frames in " + file);
+        }
+        for (byte[] frame : frames) {
+            append(temp, frame, false);
+        }
+        if (frames.isEmpty()) {
+            Files.write(temp, new byte[0]);
+        }
+        return true;
+    }
+
+    private static ByteBuffer load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Encrypted file too large: " + file);
+            }
+            ByteBuffer data = ByteBuffer.allocateDirect((int) channel.size());
+            readFully(channel, data, 0);
+            data.flip();
+            checkHeader(data, file);
+            return data;
+        }
+    }
+
+    private static void checkHeader(ByteBuffer header, Path file) throws IOException {
+        if (header.limit() < LEGACY_HEADER_BYTES || header.getInt(0) != MAGIC
+                || (header.getInt(4) != VERSION && header.getInt(4) != LEGACY_VERSION)
+                || (header.getInt(4) == VERSION && header.limit() < HEADER_BYTES)) {
+            throw new IOException("Unsupported encrypted file: " + file);
+        }
+    }
+
+    // Length of the frame at position, or -1 when no complete frame starts there
+    private static int frameLength(ByteBuffer data, int position) {
+        if (position + FRAME_OVERHEAD > data.limit()) return -1;
+        int length = data.getInt(position);
+        if (length < 0 || length > data.limit() - position - FRAME_OVERHEAD) return -1;
+        return length;
+    }
+
+    private static long countFrames(FileChannel channel, long position) throws IOException {
+        long size = channel.size();
+        long frames = 0;
+        ByteBuffer prefix = ByteBuffer.allocate(Integer.BYTES);
+        while (position + FRAME_OVERHEAD <= size) {
+            prefix.clear();
+            readFully(channel, prefix, position);
+            position += FRAME_OVERHEAD + prefix.getInt(0);
+            frames++;
+        }
+        return frames;
+    }
+
+    // Frames
+    private static void encryptFrame(Cipher cipher, SecretKey key, ByteBuffer header, long index, boolean last,
+                                     ByteBuffer plain, ByteBuffer out) throws IOException {
+        byte[] nonce = new byte[NONCE_BYTES];
+        RANDOM.nextBytes(nonce);
+        out.putInt(plain.remaining()).put(nonce);
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BYTES * 8, nonce));
+            updateAad(cipher, header, index, last);
+            cipher.doFinal(plain, out);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Encryption failed", e);
+        }
+    }
+
+    private static boolean decryptFrame(Cipher cipher, SecretKey key, ByteBuffer header, long index, boolean last,
+                                        ByteBuffer data, int position, int length, ByteBuffer plain)
+            throws IOException {
+        byte[] nonce = new byte[NONCE_BYTES];
+        ByteBuffer frame = data.duplicate();
+        frame.position(position + Integer.BYTES);
+        frame.get(nonce);
+        frame.limit(position + FRAME_OVERHEAD + length);
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BYTES * 8, nonce));
+            updateAad(cipher, header, index, last);
+            cipher.doFinal(frame, plain);
+            return true;
+        } catch (AEADBadTagException e) {
+            return false;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Decryption failed", e);
+        }
+    }
+
+    // The header, then for current files the frame's index and final flag
+    private static void updateAad(Cipher cipher, ByteBuffer header, long index, boolean last) {
+        cipher.updateAAD(header.duplicate());
+        if (header.getInt(4) != LEGACY_VERSION) {
+            ByteBuffer position = ByteBuffer.allocate(Long.BYTES + 1);
+            position.putLong(index).put((byte) (last ? 1 : 0));
+            cipher.updateAAD(position.array());
+        }
+    }
+
+    // Headers
+    private static Cipher cipher() throws IOException {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("AES-GCM is not available", e);
+        }
+    }
+
+    private static ByteBuffer newHeader(int flags) {
+        byte[] fileId = new byte[FILE_ID_BYTES];
+        RANDOM.nextBytes(fileId);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).putInt(flags).put(newFileSalt()).put(fileId);
+        header.flip();
+        return header;
+    }
+
+    // The header at the start of a loaded file, sized for its version
+    private static ByteBuffer header(ByteBuffer data) {
+        ByteBuffer header = data.duplicate();
+        header.position(0);
+        header.limit(data.getInt(4) == LEGACY_VERSION ? LEGACY_HEADER_BYTES : HEADER_BYTES);
+        return header.slice();
+    }
+
+    private static boolean isSealed(ByteBuffer header) {
+        return header.getInt(4) != LEGACY_VERSION && (header.getInt(8) & SEALED) != 0;
+    }
+
+    private static byte[] salt(ByteBuffer header) {
+        byte[] salt = new byte[SALT_BYTES];
+        ByteBuffer view = header.duplicate();
+        view.position(header.getInt(4) == LEGACY_VERSION ? 2 * Integer.BYTES : 3 * Integer.BYTES);
+        view.get(salt);
+        return salt;
+    }
+
+    private static long fileIdHash(ByteBuffer header) {
+        ByteBuffer view = header.duplicate();
+        view.position(3 * Integer.BYTES + SALT_BYTES);
+        return view.getLong() ^ view.getLong();
+    }
+
+    // Keys
+    private static synchronized byte[] newFileSalt() {
+        if (currentSalt == null) {
+            currentSalt = new byte[SALT_BYTES];
+            RANDOM.nextBytes(currentSalt);
+        }
+        return currentSalt;
+    }
+
+    // Key of a loaded file. Version 1 files were written under the passphrase or, before
+    // one was required, the built-in one; their first frame tells which.
+    private static SecretKey key(ByteBuffer data, ByteBuffer header, Cipher cipher) throws IOException {
+        SecretKey key = key(passphrase, salt(header));
+        int length = frameLength(data, header.limit());
+        if (header.getInt(4) != LEGACY_VERSION || legacyPassphrase == null || length < 0) {
+            return key;
+        }
+        if (decryptFrame(cipher, key, header, 0, false, data, header.limit(), length, ByteBuffer.allocate(length))) {
+            return key;
+        }
+        return key(legacyPassphrase, salt(header));
+    }
+
+    private static synchronized SecretKey key(char[] secret, byte[] salt) throws IOException {
+        if (secret == null) {
+            throw new IllegalStateException("No passphrase set for the data files");
+        }
+        if (currentSalt == null) {
+            currentSalt = salt;
+        }
+        String id = (secret == legacyPassphrase ? "legacy:" : "") + Base64.getEncoder().encodeToString(salt);
+        SecretKey key = KEYS.get(id);
+        if (key == null) {
+            PBEKeySpec spec = new PBEKeySpec(secret, salt, KEY_ITERATIONS, 256);
+            try {
+                byte[] raw = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+                key = new SecretKeySpec(raw, "AES");
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Key derivation failed", e);
+            } finally {
+                spec.clearPassword();
+            }
+            KEYS.put(id, key);
+        }
+        return key;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new EOFException();
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
+
+// FileManager class
+class FileManager {
+    // Single-file store from before partitioning, only read to migrate it
+    private static final String TRANSACTIONS_FILE = "transactions.dat";
+    private static final String BUDGETS_FILE = "budgets.dat";
+    private static final String RECURRING_FILE = "recurring.dat";
+    // Built-in key of files written before a passphrase was required; only read now
+    private static final String ENCRYPTION_KEY = "MySuperSecretKey123";
+    private static final byte[] KEY_BYTES = ENCRYPTION_KEY.getBytes();
+    private static final String PASSPHRASE_ENV = "PFM_PASSPHRASE";
+    private static final String JOURNAL_FILE = "transactions.journal";
+    private static final String COMPACTING_FILE = "transactions.journal.compacting";
+    private static final String ID_INDEX_FILE = "transactions.idx";
+    private static final String SEARCH_INDEX_FILE = "transactions.search";
+    private static final String MANIFEST_FILE = "transactions.manifest";
+    private static final String PARTITIONS_DIR = "partitions";
+    // Directory holding the store; the working directory unless -Dpfm.dataDir is given
+    private static final Path DATA_DIR = Paths.get(System.getProperty("pfm.dataDir", ""));
+    private static final String JOURNAL_ADD = "A,";
+    private static final String JOURNAL_DELETE = "D,";
+    private static final int COMPACTION_THRESHOLD = 1000;
+
+    private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "journal-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static Future<?> compaction;
+    private static int journalRecords;
+
+    static {
+        CipherFile.useLegacyPassphrase(ENCRYPTION_KEY);
+        String passphrase = System.getenv(PASSPHRASE_ENV);
+        if (passphrase != null && !passphrase.isEmpty()) {
+            CipherFile.usePassphrase(passphrase);
+        }
+    }
+
+    // The passphrase comes from PFM_PASSPHRASE or, at a terminal, is asked for. There is no
+    // default: anything written under a key shipped with the program is not protected.
+    static void requirePassphrase() {
+        if (CipherFile.hasPassphrase()) return;
+        Console console = System.console();
+        char[] entered = console == null ? null : console.readPassword("Passphrase for the finance data: ");
+        if (entered == null || entered.length == 0) {
+            throw new IllegalStateException("Set " + PASSPHRASE_ENV + " to the passphrase for the finance data");
+        }
+        CipherFile.usePassphrase(new String(entered));
+        Arrays.fill(entered, '\0');
+    }
+
+    // Every warning or error the store reports is also counted
+    private static void warn(String message) {
+        Metrics.STORE_WARNINGS.increment();
+        System.out.println(message);
+    }
+
+    private static Path dataPath(String first, String... more) {
+        return DATA_DIR.resolve(Paths.get(first, more));
+    }
+
+    // Legacy formats
+    // Files written before CipherFile were XORed with the built-in key, line by line with
+    // Base64 for the text files and in place for the binary bodies. They are only read now.
+    private static String simpleDecrypt(String encryptedData) {
+        try {
+            byte[] keyBytes = ENCRYPTION_KEY.getBytes();
+            byte[] encryptedBytes = Base64.getDecoder().decode(encryptedData);
+            byte[] decrypted = new byte[encryptedBytes.length];
+            
+            for (int i = 0; i < encryptedBytes.length; i++) {
+                decrypted[i] = (byte) (encryptedBytes[i] ^ keyBytes[i % keyBytes.length]);
+            }
+            return new String(decrypted);
+        } catch (Exception e) {
+            warn("Warning: Decryption failed, reading as plain text");
+            return encryptedData;
+        }
+    }
+
+    private static void xorBody(byte[] data, int from) {
+        for (int i = from; i < data.length; i++) {
+            data[i] ^= KEY_BYTES[(i - from) % KEY_BYTES.length];
+        }
+    }
+
+    private static List<String> readLegacyLines(Path file) throws IOException {
+        List<String> records = new ArrayList<>();
+        for (String encryptedLine : Files.readAllLines(file)) {
+            if (!encryptedLine.isEmpty()) {
+                records.add(simpleDecrypt(encryptedLine));
+            }
+        }
+        return records;
+    }
+
+    // Re-encrypts a legacy journal in place as one CipherFile frame of UTF-8 lines
+    private static void migrateLegacyFile(Path file) throws IOException {
+        byte[] plain = (String.join("\n", readLegacyLines(file)) + "\n").getBytes(StandardCharsets.UTF_8);
+        Path temp = Paths.get(file + ".tmp");
+        Files.deleteIfExists(temp);
+        CipherFile.append(temp, plain, true);
+        replaceAtomically(temp, file);
+    }
+
+    // Rewrites CipherFile version 1 files, whose frames were not bound to their position,
+    // in the current format. Each file is replaced atomically, so a crash part way leaves
+    // a mix of versions that still reads.
+    private static void upgradeCipherFiles() throws IOException {
+        List<Path> sealed = new ArrayList<>(Arrays.asList(dataPath(MANIFEST_FILE), dataPath(BUDGETS_FILE),
+            dataPath(RECURRING_FILE), dataPath(TRANSACTIONS_FILE), dataPath(SEARCH_INDEX_FILE)));
+        if (Files.isDirectory(dataPath(PARTITIONS_DIR))) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dataPath(PARTITIONS_DIR), "*.{dat,search}")) {
+                files.forEach(sealed::add);
+            }
+        }
+        for (Path file : sealed) {
+            upgradeCipherFile(file, false);
+        }
+        upgradeCipherFile(dataPath(COMPACTING_FILE), true);
+        upgradeCipherFile(dataPath(JOURNAL_FILE), true);
+    }
+
+    private static void upgradeCipherFile(Path file, boolean appendable) throws IOException {
+        if (!CipherFile.isEncrypted(file)) return;
+        Path temp = Paths.get(file + ".tmp");
+        if (CipherFile.upgrade(file, temp, appendable)) {
+            replaceAtomically(temp, file);
+        }
+    }
+
+    private static List<String> readLines(ByteBuffer plain) {
+        List<String> lines = new ArrayList<>();
+        for (String line : StandardCharsets.UTF_8.decode(plain).toString().split("\n")) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    // Crash-safe replacement: the temp file is synced before the atomic rename, so after a
+    // crash a reader sees either the old file or the whole new one, never a truncated mix
+    static void replaceAtomically(Path temp, Path target) throws IOException {
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(false);
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDirectory(target);
+    }
+
+    // Makes a rename durable; not every platform can open a directory, which is harmless
+    private static void syncDirectory(Path file) {
+        Path directory = file.toAbsolutePath().getParent();
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Best effort
+        }
+    }
+
+    // Monthly Partitions
+    // Transactions are stored one file set per month under partitions/: the columnar
+    // snapshot (.dat), its id index (.idx) and its search index (.search), all named after
+    // the month and a random generation. The manifest lists the current generation of every
+    // month and is replaced last, which commits a save. Files it no longer lists are left
+    // alone while the program runs, since the ledger may still open them, and removed at
+    // the next startup.
+    static final int EAGER_MONTHS = Integer.getInteger("pfm.eagerMonths", 12);
+    private static PartitionManifest manifest = new PartitionManifest();
+    // Months of a failed save, written again by the next one
+    private static final Set<Integer> retryMonths = new HashSet<>();
+    private static final Object INDEX_LOCK = new Object();
+
+    // Rewrites the partitions of the months changed in the ledger (a snapshot() copy) and
+    // commits them; returns whether the manifest was replaced
+    public static boolean saveTransactions(Ledger transactions) {
+        long start = System.nanoTime();
+        Set<Integer> dirty = new TreeSet<>(transactions.dirtyMonths());
+        PartitionManifest updated;
+        synchronized (FileManager.class) {
+            dirty.addAll(retryMonths);
+            updated = manifest.copy();
+        }
+        try {
+            for (int month : dirty) {
+                transactions.loadMonths(month, month);
+                if (transactions.hasUnloaded(month, month)) {
+                    throw new IOException("Transactions of " + Ledger.yearMonth(month) + " are not loaded");
+                }
+            }
+            Map<Integer, int[]> rows = transactions.rowsByMonth(dirty);
+            Files.createDirectories(dataPath(PARTITIONS_DIR));
+            for (int month : dirty) {
+                int[] monthRows = rows.get(month);
+                if (monthRows == null) {
+                    updated.remove(month);
+                    continue;
+                }
+                PartitionManifest.Entry entry = PartitionManifest.summarize(month,
+                    ThreadLocalRandom.current().nextInt(), transactions, monthRows);
+                writePartition(entry, transactions, monthRows);
+                updated.put(entry);
+            }
+            Path temp = dataPath(MANIFEST_FILE + ".tmp");
+            CipherFile.write(temp, ByteBuffer.wrap(updated.toBytes()));
+            replaceAtomically(temp, dataPath(MANIFEST_FILE));
+        } catch (IOException | UncheckedIOException e) {
+            warn("Error: Could not save transactions to file");
+            synchronized (FileManager.class) {
+                retryMonths.addAll(dirty);
+            }
+            Metrics.STORE_SAVE.recordSince(start);
+            return false;
+        }
+        synchronized (FileManager.class) {
+            manifest = updated;
+            retryMonths.removeAll(dirty);
+        }
+        Metrics.STORE_SAVE.recordSince(start);
+        return true;
+    }
+
+    private static void writePartition(PartitionManifest.Entry entry, Ledger ledger, int[] rows) throws IOException {
+        Path base = dataPath(PARTITIONS_DIR, entry.fileName());
+        Path temp = Paths.get(base + ".dat.tmp");
+        CipherFile.write(temp, ByteBuffer.wrap(SnapshotFormat.encode(ledger, rows, entry.generation)));
+        replaceAtomically(temp, Paths.get(base + ".dat"));
+
+        saveIdIndex(Paths.get(base + ".idx"), IdIndex.build(rows.length, i -> ledger.id(rows[i]), entry.generation));
+        saveSearchIndex(Paths.get(base + ".search"),
+            SearchIndex.build(rows.length, i -> ledger.description(rows[i])), entry.generation);
+    }
+
+    // Opens a partition listed in the manifest and attaches it to the ledger
+    private static void loadPartition(Ledger ledger, PartitionManifest.Entry entry) {
+        Path base = dataPath(PARTITIONS_DIR, entry.fileName());
+        long start = System.nanoTime();
+        try {
+            TransactionStore store = TransactionStore.open(CipherFile.Reader.open(Paths.get(base + ".dat")));
+            ledger.attach(entry.month, store, loadIdIndex(Paths.get(base + ".idx"), store));
+            Metrics.PARTITION_LOAD.recordSince(start);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not load transactions of " + Ledger.yearMonth(entry.month), e);
+        }
+    }
+
+    private static PartitionManifest loadManifest() throws IOException {
+        Path manifestFile = dataPath(MANIFEST_FILE);
+        if (!Files.exists(manifestFile)) {
+            return new PartitionManifest();
+        }
+        try {
+            return PartitionManifest.fromBytes(CipherFile.read(manifestFile, false).array());
+        } catch (IOException e) {
+            // Carrying on would hide every partition and let the next save drop them
+            throw new IllegalStateException("Unreadable partition manifest: " + manifestFile, e);
+        }
+    }
+
+    // Removes partition files the manifest does not list: superseded generations and
+    // files of a save that did not commit
+    private static void removeOrphans(PartitionManifest manifest) {
+        Path directory = dataPath(PARTITIONS_DIR);
+        if (!Files.isDirectory(directory)) return;
+        Set<String> current = new HashSet<>();
+        for (PartitionManifest.Entry entry : manifest.entries()) {
+            current.add(entry.fileName());
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int dot = name.indexOf('.');
+                if (dot < 0 || !current.contains(name.substring(0, dot)) || name.endsWith(".tmp")) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException e) {
+            warn("Warning: Could not remove old partition files");
+        }
+    }
+
+    private static void saveSearchIndex(Path file, SearchIndex index, int generation) {
+        Path temp = Paths.get(file + ".tmp");
+        synchronized (INDEX_LOCK) {
+            try {
+                CipherFile.write(temp, ByteBuffer.wrap(index.toBytes(generation)));
+                replaceAtomically(temp, file);
+            } catch (IOException e) {
+                // A missing or stale index is rebuilt on the next load
+                warn("Warning: Could not save search index");
+            }
+        }
+    }
+
+    // Reads the persisted search index of a partition, rebuilding it when it is missing or
+    // stale; row numbers are relative to the partition
+    static SearchIndex loadPartitionSearch(int month, TransactionStore store) {
+        Path indexFile = dataPath(PARTITIONS_DIR, PartitionManifest.fileName(month, store.generation()) + ".search");
+        SearchIndex index = null;
+        if (Files.exists(indexFile)) {
+            try {
+                byte[] data = CipherFile.read(indexFile, false).array();
+                index = SearchIndex.fromBytes(data, store.generation(), store.rows());
+            } catch (IOException | IllegalStateException e) {
+                warn("Warning: Could not load search index");
+            }
+        }
+        if (index == null) {
+            index = SearchIndex.build(store.rows(), store::description);
+            saveSearchIndex(indexFile, index, store.generation());
+        }
+        return index;
+    }
+
+    // Search index over every row of the ledger: partition indexes are merged at the rows
+    // where the partitions start and rows added since are indexed one by one
+    public static SearchIndex loadSearchIndex(Ledger ledger) {
+        long start = System.nanoTime();
+        SearchIndex index = new SearchIndex();
+        int row = 0;
+        for (Ledger.Segment segment : ledger.segments()) {
+            for (; row < segment.firstRow; row++) {
+                index.index(row, ledger.description(row));
+            }
+            index.append(loadPartitionSearch(segment.month, segment.store), segment.firstRow);
+            row = segment.firstRow + segment.store.rows();
+        }
+        for (; row < ledger.rowLimit(); row++) {
+            index.index(row, ledger.description(row));
+        }
+        index.indexCategories(ledger.categoryColumn(), 0, ledger.rowLimit());
+        Metrics.SEARCH_INDEX_LOAD.recordSince(start);
+        return index;
+    }
+
+    private static void saveIdIndex(Path file, ByteBuffer index) {
+        Path temp = Paths.get(file + ".tmp");
+        synchronized (INDEX_LOCK) {
+            try {
+                try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ByteBuffer data = index.duplicate();
+                    data.clear();
+                    while (data.hasRemaining()) {
+                        channel.write(data);
+                    }
+                    channel.force(false);
+                }
+                replaceAtomically(temp, file);
+            } catch (IOException e) {
+                // A missing or stale index is rebuilt on the next load
+                warn("Warning: Could not save transaction index");
+            }
+        }
+    }
+
+    // Maps the persisted id index, rebuilding it from the snapshot when it is missing or stale
+    private static IdIndex loadIdIndex(Path indexFile, TransactionStore store) throws IOException {
+        if (Files.exists(indexFile)) {
+            try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+                IdIndex index = IdIndex.open(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()),
+                    store.generation(), store.rows());
+                if (index != null) {
+                    return index;
+                }
+            }
+        }
+
+        ByteBuffer rebuilt = IdIndex.build(store.rows(), store::id, store.generation());
+        saveIdIndex(indexFile, rebuilt);
+        return IdIndex.open(rebuilt, store.generation(), store.rows());
+    }
+
+    // Splits a single-file store from before partitioning into monthly partitions. The
+    // manifest commits the split; the old files are removed only after it.
+    private static void migrateSingleSnapshot() throws IOException {
+        Path snapshotFile = dataPath(TRANSACTIONS_FILE);
+        if (!Files.exists(snapshotFile)) return;
+        if (!Files.exists(dataPath(MANIFEST_FILE))) {
+            Ledger ledger;
+            if (CipherFile.isEncrypted(snapshotFile)) {
+                ledger = Ledger.load(TransactionStore.open(CipherFile.read(snapshotFile, true)));
+            } else if (SnapshotFormat.isSnapshot(snapshotFile)) {
+                // XOR-masked columnar snapshot
+                byte[] plain = Files.readAllBytes(snapshotFile);
+                xorBody(plain, SnapshotFormat.HEADER_BYTES);
+                ledger = Ledger.load(TransactionStore.open(ByteBuffer.wrap(plain)));
+            } else {
+                // Old line-based text format
+                ledger = loadLegacyTransactions(Files.readAllBytes(snapshotFile));
+            }
+            ledger.markAllDirty();
+            if (!saveTransactions(ledger)) {
+                throw new IOException("Could not split " + snapshotFile + " into partitions");
+            }
+        }
+        Files.deleteIfExists(dataPath(ID_INDEX_FILE));
+        Files.deleteIfExists(dataPath(SEARCH_INDEX_FILE));
+        Files.delete(snapshotFile);
+        syncDirectory(snapshotFile);
+    }
+
+    public static Ledger loadTransactions() {
+        long start = System.nanoTime();
+        requirePassphrase();
+        Ledger ledger = Ledger.empty();
+        try {
+            upgradeCipherFiles();
+            PartitionManifest loaded = loadManifest();
+            synchronized (FileManager.class) {
+                manifest = loaded;
+            }
+            migrateSingleSnapshot();
+            synchronized (FileManager.class) {
+                loaded = manifest;
+            }
+            removeOrphans(loaded);
+
+            // Recent months are loaded now, older ones when something asks for them
+            ledger.setPartitions(loaded.entries(), FileManager::loadPartition);
+            ledger.loadMonths(Ledger.currentMonth() - EAGER_MONTHS + 1,
+                Integer.MAX_VALUE);
+
+            Map<String, Transaction> added = new LinkedHashMap<>();
+            Set<String> deletedIds = new HashSet<>();
+            List<Transaction> cancelledAdds = new ArrayList<>();
+            boolean recovering = Files.exists(dataPath(COMPACTING_FILE));
+            replayJournal(dataPath(COMPACTING_FILE), added, deletedIds, cancelledAdds);
+            journalRecords = replayJournal(dataPath(JOURNAL_FILE), added, deletedIds, cancelledAdds);
+
+            // Deletes of partition rows are resolved through the id indexes. After an
+            // interrupted compaction the partitions may already contain journaled adds,
+            // including ones a later delete cancelled.
+            for (String id : deletedIds) {
+                int row = ledger.rowOf(id);
+                if (row >= 0) {
+                    ledger.delete(row);
+                }
+            }
+            if (recovering) {
+                for (Transaction transaction : cancelledAdds) {
+                    int month = Ledger.monthIndex((int) transaction.getDate().toEpochDay());
+                    int row = ledger.rowOf(transaction.getId(), month);
+                    if (row >= 0) {
+                        ledger.delete(row);
+                    }
+                }
+                for (Transaction transaction : new ArrayList<>(added.values())) {
+                    int month = Ledger.monthIndex((int) transaction.getDate().toEpochDay());
+                    if (ledger.rowOf(transaction.getId(), month) >= 0) {
+                        added.remove(transaction.getId());
+                    }
+                }
+            }
+            for (Transaction transaction : added.values()) {
+                ledger.add(transaction);
+            }
+        } catch (IllegalStateException e) {
+            // A wrong passphrase must stop the program rather than look like an empty ledger
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            // Running on a partial ledger would let the next compaction fold the journal into
+            // partitions without the records that were not replayed, then delete it
+            warn("Error: Could not load transactions file");
+            throw new IllegalStateException("Could not load transactions: " + e.getMessage(), e);
+        }
+        Metrics.STORE_LOAD.recordSince(start);
+        return ledger;
+    }
+
+    private static Ledger loadLegacyTransactions(byte[] data) {
+        Ledger transactions = Ledger.empty();
+        for (String encryptedLine : new String(data).split("\\R")) {
+            if (encryptedLine.isEmpty()) continue;
+            String decryptedLine = simpleDecrypt(encryptedLine);
+            Transaction transaction = Transaction.fromFileString(decryptedLine);
+            if (transaction != null) {
+                transactions.add(transaction);
+            }
+        }
+        return transactions;
+    }
+
+    // Transaction Journal
+    // A write-ahead log of adds and deletes, appended instead of rewriting the snapshot.
+    // Each record carries a CRC32C of its text inside the authenticated frame, so a damaged
+    // record is detected and counted on replay rather than silently dropped. Recovery is
+    // replay of the journal over the partitions, so it costs time in proportion to the
+    // journal, which compaction keeps below about COMPACTION_THRESHOLD records: past that
+    // it is rotated and the months it touched are rewritten on a background thread.
+    private static String journalLine(String record) {
+        String hex = Integer.toHexString(checksum(record));
+        return "00000000".substring(hex.length()) + hex + " " + record + "\n";
+    }
+
+    private static int checksum(String record) {
+        CRC32C crc = new CRC32C();
+        crc.update(record.getBytes(StandardCharsets.UTF_8));
+        return (int) crc.getValue();
+    }
+
+    // The record text of a journal line, or null if its checksum does not match. Lines
+    // written before checksums were added start directly with the record type.
+    private static String verifiedRecord(String line) {
+        if (line.startsWith(JOURNAL_ADD) || line.startsWith(JOURNAL_DELETE)) {
+            return line;
+        }
+        if (line.length() < 9 || line.charAt(8) != ' ') {
+            return null;
+        }
+        try {
+            String record = line.substring(9);
+            return Integer.parseUnsignedInt(line.substring(0, 8), 16) == checksum(record) ? record : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static int replayJournal(Path journal, Map<String, Transaction> added, Set<String> deletedIds,
+                                     List<Transaction> cancelledAdds) throws IOException {
+        if (!Files.exists(journal)) {
+            return 0;
+        }
+        if (Files.size(journal) < CipherFile.HEADER_BYTES) {
+            // Crashed while creating the file; the next append starts it over
+            return 0;
+        }
+
+        if (!CipherFile.isEncrypted(journal)) {
+            migrateLegacyFile(journal);
+        }
+        // A torn last frame would otherwise hide every frame appended after it
+        if (CipherFile.truncateTornFrame(journal)) {
+            Metrics.JOURNAL_TORN_FRAMES.increment();
+            warn("Warning: Discarded a partly written journal frame");
+        }
+        List<String> lines = new ArrayList<>();
+        int skipped = CipherFile.readFrames(journal, frame -> lines.addAll(readLines(frame)));
+        if (skipped > 0) {
+            // Compaction would fold the ledger without these records into the partitions and
+            // delete the only copy of them, so it stays off while the journal is damaged
+            Metrics.JOURNAL_SKIPPED_FRAMES.add(skipped);
+            warn("Warning: Skipped " + skipped + " unreadable journal frames; keeping " + journal
+                + " uncompacted");
+            synchronized (FileManager.class) {
+                journalDamaged = true;
+            }
+        }
+
+        int corrupt = 0;
+        for (String line : lines) {
+            String record = verifiedRecord(line);
+            Transaction transaction = null;
+            if (record != null && record.startsWith(JOURNAL_ADD)) {
+                transaction = Transaction.fromFileString(record.substring(JOURNAL_ADD.length()));
+            }
+            if (transaction != null) {
+                added.put(transaction.getId(), transaction);
+            } else if (record != null && record.startsWith(JOURNAL_DELETE)) {
+                String id = record.substring(JOURNAL_DELETE.length());
+                Transaction cancelled = added.remove(id);
+                if (cancelled == null) {
+                    deletedIds.add(id);
+                } else {
+                    cancelledAdds.add(cancelled);
+                }
+            } else {
+                corrupt++;
+            }
+        }
+        if (corrupt > 0) {
+            Metrics.JOURNAL_CORRUPT_RECORDS.add(corrupt);
+            warn("Warning: Skipped " + corrupt + " corrupt journal records in " + journal);
+        }
+        return lines.size();
+    }
+
+    public static synchronized void appendTransaction(Transaction transaction, Ledger transactions) {
+        appendJournalRecords(journalLine(JOURNAL_ADD + transaction.toFileString()), 1, transactions);
+    }
+
+    public static synchronized void appendDeletion(String id, Ledger transactions) {
+        appendJournalRecords(journalLine(JOURNAL_DELETE + id), 1, transactions);
+    }
+
+    public static synchronized void appendTransactions(List<Transaction> batch, Ledger transactions) {
+        if (batch.isEmpty()) return;
+        StringBuilder lines = new StringBuilder(batch.size() * 96);
+        for (Transaction transaction : batch) {
+            lines.append(journalLine(JOURNAL_ADD + transaction.toFileString()));
+        }
+        appendJournalRecords(lines.toString(), batch.size(), transactions);
+    }
+
+    // Queues the records and, past the threshold, a rotation. The ledger snapshot for the
+    // compaction is taken here, on the thread that mutates the ledger, so it holds exactly
+    // the records queued before the rotation.
+    private static void appendJournalRecords(String lines, int count, Ledger transactions) {
+        enqueue(new PendingWrite(lines, null, null));
+        journalRecords += count;
+
+        if (journalRecords >= COMPACTION_THRESHOLD && !compactionPending()) {
+            journalRecords = 0;
+            rotationQueued = true;
+            enqueue(new PendingWrite(null, transactions.snapshot(), null));
+        }
+    }
+
+    private static synchronized boolean compactionPending() {
+        return rotationQueued || journalDamaged || (compaction != null && !compaction.isDone());
+    }
+
+    // Runs on the writer thread once every record queued before the rotation is written
+    private static void rotateAndCompact(Ledger snapshot) {
+        // Rotate the journal so new appends go to a fresh file while the snapshot is written.
+        // A leftover compacting file from an interrupted run is extended rather than replaced.
+        try {
+            Path journal = dataPath(JOURNAL_FILE);
+            Path compacting = dataPath(COMPACTING_FILE);
+            if (Files.exists(compacting)) {
+                ByteArrayOutputStream pending = new ByteArrayOutputStream();
+                int skipped = CipherFile.readFrames(journal, frame -> pending.write(frame.array(), 0, frame.limit()));
+                if (skipped > 0) {
+                    Metrics.JOURNAL_SKIPPED_FRAMES.add(skipped);
+                    synchronized (FileManager.class) {
+                        journalDamaged = true;
+                    }
+                    throw new IOException("Unreadable frames in " + journal);
+                }
+                CipherFile.append(compacting, pending.toByteArray(), true);
+                Files.delete(journal);
+            } else {
+                Files.move(journal, compacting, StandardCopyOption.ATOMIC_MOVE);
+                syncDirectory(compacting);
+            }
+        } catch (IOException e) {
+            warn("Warning: Could not rotate transaction journal");
+            synchronized (FileManager.class) {
+                rotationQueued = false;
+            }
+            return;
+        }
+
+        synchronized (FileManager.class) {
+            rotationQueued = false;
+            compaction = COMPACTOR.submit(() -> {
+                long start = System.nanoTime();
+                // A failed save keeps the compacting journal for the next one to extend
+                if (saveTransactions(snapshot)) {
+                    try {
+                        Files.deleteIfExists(dataPath(COMPACTING_FILE));
+                    } catch (IOException e) {
+                        warn("Warning: Could not remove compacted journal");
+                    }
+                }
+                Metrics.JOURNAL_COMPACTION.recordSince(start);
+            });
+        }
+    }
+
+    public static void awaitCompaction() {
+        Future<?> pending;
+        synchronized (FileManager.class) {
+            pending = compaction;
+        }
+        if (pending == null) return;
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            warn("Warning: Journal compaction failed");
+        }
+    }
+
+    // Write-behind
+    // Journal records, budget and recurring rule saves are queued and written by one
+    // background thread, so callers never wait on disk. Whatever queues up while the writer
+    // is busy goes out as a single journal frame (group commit), and only the latest budgets
+    // and rules are written. Only the journal is fsynced on an interval, at most every
+    // pfm.fsyncMillis milliseconds (0 syncs every commit); budgets and rules replace their
+    // files through a synced temp file on every write. flush() forces everything out and
+    // runs on exit and from a shutdown hook.
+    private static final long FSYNC_MILLIS = Long.getLong("pfm.fsyncMillis", 1000);
+    private static final Object WRITE_LOCK = new Object();
+    private static final List<PendingWrite> pendingWrites = new ArrayList<>();
+    private static byte[] pendingBudgets;
+    private static byte[] pendingRules;
+    private static boolean rotationQueued;
+    // Set when a journal has frames that do not decrypt; no compaction runs after that
+    private static boolean journalDamaged;
+
+    // Journal lines, a ledger snapshot to rotate and compact, or a flush waiting to be
+    // released; exactly one is set
+    private static class PendingWrite {
+        final String records;
+        final Ledger rotation;
+        final CountDownLatch flushed;
+
+        PendingWrite(String records, Ledger rotation, CountDownLatch flushed) {
+            this.records = records;
+            this.rotation = rotation;
+            this.flushed = flushed;
+        }
+    }
+
+    static {
+        Thread writer = new Thread(FileManager::writeBehind, "pfm-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(FileManager::flush, "pfm-flush"));
+    }
+
+    private static void enqueue(PendingWrite write) {
+        synchronized (WRITE_LOCK) {
+            pendingWrites.add(write);
+            WRITE_LOCK.notifyAll();
+        }
+    }
+
+    // Blocks until everything queued so far is written and synced, then waits for a
+    // running compaction
+    public static void flush() {
+        CountDownLatch flushed = new CountDownLatch(1);
+        enqueue(new PendingWrite(null, null, flushed));
+        try {
+            flushed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        awaitCompaction();
+    }
+
+    private static void writeBehind() {
+        List<PendingWrite> batch = new ArrayList<>();
+        StringBuilder records = new StringBuilder();
+        long lastSync = System.currentTimeMillis();
+        boolean unsynced = false;
+        while (true) {
+            byte[] budgets;
+            byte[] rules;
+            try {
+                synchronized (WRITE_LOCK) {
+                    while (pendingWrites.isEmpty() && pendingBudgets == null && pendingRules == null) {
+                        if (!unsynced) {
+                            WRITE_LOCK.wait();
+                            continue;
+                        }
+                        long remaining = lastSync + FSYNC_MILLIS - System.currentTimeMillis();
+                        if (remaining <= 0) break;
+                        WRITE_LOCK.wait(remaining);
+                    }
+                    batch.addAll(pendingWrites);
+                    pendingWrites.clear();
+                    budgets = pendingBudgets;
+                    pendingBudgets = null;
+                    rules = pendingRules;
+                    pendingRules = null;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            for (PendingWrite write : batch) {
+                if (write.records != null) {
+                    records.append(write.records);
+                    continue;
+                }
+                unsynced |= commitJournal(records, false);
+                if (write.rotation != null) {
+                    syncJournal();
+                    // Compaction drops the deletes of occurrences, so the progress past them
+                    // must be on disk first
+                    boolean progressSaved = rules == null || writeRecurringRules(rules);
+                    rules = null;
+                    if (progressSaved) {
+                        rotateAndCompact(write.rotation);
+                    } else {
+                        synchronized (FileManager.class) {
+                            rotationQueued = false;
+                        }
+                    }
+                } else {
+                    if (budgets != null) {
+                        writeBudgets(budgets);
+                        budgets = null;
+                    }
+                    if (rules != null) {
+                        writeRecurringRules(rules);
+                        rules = null;
+                    }
+                    syncJournal();
+                    unsynced = false;
+                    lastSync = System.currentTimeMillis();
+                    write.flushed.countDown();
+                }
+            }
+            batch.clear();
+            unsynced |= commitJournal(records, FSYNC_MILLIS == 0);
+            if (budgets != null) {
+                writeBudgets(budgets);
+            }
+            if (rules != null) {
+                writeRecurringRules(rules);
+            }
+
+            if (unsynced && System.currentTimeMillis() - lastSync >= FSYNC_MILLIS) {
+                syncJournal();
+                unsynced = false;
+                lastSync = System.currentTimeMillis();
+            }
+        }
+    }
+
+    // Appends the collected records as one frame; returns whether anything was written
+    private static boolean commitJournal(StringBuilder records, boolean sync) {
+        if (records.length() == 0) return false;
+        long start = System.nanoTime();
+        try {
+            CipherFile.append(dataPath(JOURNAL_FILE), records.toString().getBytes(StandardCharsets.UTF_8), sync);
+            Metrics.JOURNAL_COMMIT.recordSince(start);
+            return !sync;
+        } catch (IOException e) {
+            warn("Error: Could not append to transaction journal");
+            return false;
+        } finally {
+            records.setLength(0);
+        }
+    }
+
+    private static void syncJournal() {
+        Path journal = dataPath(JOURNAL_FILE);
+        if (!Files.exists(journal)) return;
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+            channel.force(false);
+        } catch (IOException e) {
+            warn("Warning: Could not sync transaction journal");
+        }
+    }
+
+    // Serialized on the caller's thread, since budgets are mutable, and written behind.
+    // Serializing under the queue lock keeps a stale copy from replacing a newer one.
+    public static void saveBudgets(Collection<Budget> budgets) {
+        synchronized (WRITE_LOCK) {
+            StringBuilder lines = new StringBuilder();
+            for (Budget budget : budgets) {
+                lines.append(budget.toFileString()).append('\n');
+            }
+            pendingBudgets = lines.toString().getBytes(StandardCharsets.UTF_8);
+            WRITE_LOCK.notifyAll();
+        }
+    }
+
+    private static void writeBudgets(byte[] budgets) {
+        Path temp = dataPath(BUDGETS_FILE + ".tmp");
+        long start = System.nanoTime();
+        try {
+            CipherFile.write(temp, ByteBuffer.wrap(budgets));
+            replaceAtomically(temp, dataPath(BUDGETS_FILE));
+            Metrics.BUDGETS_SAVE.recordSince(start);
+        } catch (IOException e) {
+            warn("Error: Could not save budgets to file");
+        }
+    }
+
+    // Queued after the journal holding the rules' occurrences was synced, so the saved
+    // progress never runs ahead of the ledger
+    public static void saveRecurringRules(Collection<RecurringRule> rules) {
+        synchronized (WRITE_LOCK) {
+            StringBuilder lines = new StringBuilder();
+            for (RecurringRule rule : rules) {
+                lines.append(rule.toFileString()).append('\n');
+            }
+            pendingRules = lines.toString().getBytes(StandardCharsets.UTF_8);
+            WRITE_LOCK.notifyAll();
+        }
+    }
+
+    // Returns whether the rules were written
+    private static boolean writeRecurringRules(byte[] rules) {
+        Path temp = dataPath(RECURRING_FILE + ".tmp");
+        long start = System.nanoTime();
+        try {
+            CipherFile.write(temp, ByteBuffer.wrap(rules));
+            replaceAtomically(temp, dataPath(RECURRING_FILE));
+            Metrics.RECURRING_SAVE.recordSince(start);
+            return true;
+        } catch (IOException e) {
+            warn("Error: Could not save recurring transactions to file");
+            return false;
+        }
+    }
+
+    public static List<RecurringRule> loadRecurringRules() {
+        List<RecurringRule> rules = new ArrayList<>();
+        Path rulesFile = dataPath(RECURRING_FILE);
+        if (!Files.exists(rulesFile)) {
+            return rules;
+        }
+        try {
+            for (String line : readLines(CipherFile.read(rulesFile, false))) {
+                RecurringRule rule = RecurringRule.fromFileString(line);
+                if (rule != null) {
+                    rules.add(rule);
+                }
+            }
+        } catch (IOException e) {
+            warn("Warning: Could not load recurring transactions file");
+        }
+        return rules;
+    }
+
+    public static List<Budget> loadBudgets() {
+        List<Budget> budgets = new ArrayList<>();
+        try {
+            if (!Files.exists(dataPath(BUDGETS_FILE))) {
+                return budgets;
+            }
+            
+            Path budgetsFile = dataPath(BUDGETS_FILE);
+            List<String> lines = CipherFile.isEncrypted(budgetsFile)
+                ? readLines(CipherFile.read(budgetsFile, false))
+                : readLegacyLines(budgetsFile);
+            for (String line : lines) {
+                Budget budget = Budget.fromFileString(line);
+                if (budget != null) {
+                    budgets.add(budget);
+                }
+            }
+        } catch (IOException e) {
+            warn("Warning: Could not load budgets file");
+        }
+        return budgets;
+    }
+}
+
+// BulkImporter class
+// Streams a CSV or OFX file into the ledger without loading it whole. Records are read in
+// chunks; each chunk is parsed and validated on a worker pool while the reader moves on,
+// and finished chunks are applied in input order so the ledger keeps the file's order.
+// A CSV header names the columns (date, type, amount, category, description); without one
+// the order above is assumed. Without a type column the sign of the amount decides.
+class BulkImporter {
+    static final String DEFAULT_CATEGORY = "IMPORTED";
+    private static final int CHUNK_SIZE = 8192;
+    private static final int MAX_REPORTED_ERRORS = 10;
+    private static final DateTimeFormatter US_DATE = DateTimeFormatter.ofPattern("MM/dd/yyyy");
+    private static final DateTimeFormatter OFX_DATE = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    private final PersonalFinanceManager manager;
+    private int imported;
+    private int rejected;
+    private final List<String> errors = new ArrayList<>();
+
+    // Parsed records of one chunk in input order, plus the rejects
+    private static class Chunk {
+        final List<Transaction> transactions = new ArrayList<>();
+        final List<String> errors = new ArrayList<>();
+    }
+
+    // Converts one raw record into a transaction, or throws with the reason it is rejected
+    private interface RecordParser {
+        Transaction parse(String record);
+    }
+
+    public BulkImporter(PersonalFinanceManager manager) {
+        this.manager = manager;
+    }
+
+    public void importFile(Path file) throws IOException {
+        String name = file.getFileName().toString().toLowerCase();
+        boolean ofx = name.endsWith(".ofx") || name.endsWith(".qfx");
+        int workers = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "pfm-import");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        System.out.println("Importing " + file + "...");
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            RecordParser parser = ofx ? BulkImporter::parseOfx : csvParser(reader);
+            Deque<Future<Chunk>> pending = new ArrayDeque<>();
+            int recordNumber = 0;
+            List<String> records;
+            while (!(records = ofx ? readOfxRecords(reader) : readLines(reader)).isEmpty()) {
+                List<String> chunkRecords = records;
+                int firstRecord = recordNumber + 1;
+                recordNumber += records.size();
+                pending.add(pool.submit(() -> parseChunk(chunkRecords, firstRecord, parser)));
+                // Bound the read-ahead so memory stays flat regardless of file size
+                if (pending.size() > workers * 2) {
+                    apply(pending.poll());
+                }
+            }
+            while (!pending.isEmpty()) {
+                apply(pending.poll());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        manager.finishImport();
+        System.out.println("Imported " + imported + " transactions, rejected " + rejected + ".");
+        for (String error : errors) {
+            System.out.println("  " + error);
+        }
+        if (rejected > errors.size()) {
+            System.out.println("  ... and " + (rejected - errors.size()) + " more");
+        }
+    }
+
+    private void apply(Future<Chunk> future) throws IOException {
+        Chunk chunk;
+        try {
+            chunk = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Import interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Import failed: " + e.getCause(), e.getCause());
+        }
+        manager.importBatch(chunk.transactions);
+        imported += chunk.transactions.size();
+        rejected += chunk.errors.size();
+        Metrics.IMPORT_REJECTED.add(chunk.errors.size());
+        for (String error : chunk.errors) {
+            if (errors.size() >= MAX_REPORTED_ERRORS) break;
+            errors.add(error);
+        }
+    }
+
+    private static Chunk parseChunk(List<String> records, int firstRecord, RecordParser parser) {
+        Chunk chunk = new Chunk();
+        for (int i = 0; i < records.size(); i++) {
+            try {
+                chunk.transactions.add(parser.parse(records.get(i)));
+            } catch (RuntimeException e) {
+                chunk.errors.add("Record " + (firstRecord + i) + ": " + e.getMessage());
+            }
+        }
+        return chunk;
+    }
+
+    // Common checks and conversion, using the same rules as the interactive prompts
+    private static Transaction toTransaction(LocalDate date, TransactionType type, String amountText,
+                                             String category, String description) {
+        String amountError = PersonalFinanceManager.amountError(amountText);
+        if (amountError != null) throw new IllegalArgumentException(amountError);
+        String categoryError = PersonalFinanceManager.categoryError(category);
+        if (categoryError != null) throw new IllegalArgumentException(categoryError);
+        return new Transaction(TransactionIdGenerator.nextId(), type, Money.parse(amountText),
+            category.trim().toUpperCase(), description.trim(), date);
+    }
+
+    // CSV
+    private static List<String> readLines(BufferedReader reader) throws IOException {
+        List<String> lines = new ArrayList<>(CHUNK_SIZE);
+        String line;
+        while (lines.size() < CHUNK_SIZE && (line = reader.readLine()) != null) {
+            if (!line.trim().isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    // Reads the header if there is one and returns a parser for the remaining lines
+    private static RecordParser csvParser(BufferedReader reader) throws IOException {
+        int[] columns = {0, 1, 2, 3, 4};
+        reader.mark(64 * 1024);
+        String first = reader.readLine();
+        List<String> header = first == null ? Collections.emptyList() : splitCsv(first.toLowerCase());
+        if (header.contains("date") && header.contains("amount")) {
+            columns[0] = header.indexOf("date");
+            columns[1] = header.indexOf("type");
+            columns[2] = header.indexOf("amount");
+            columns[3] = header.indexOf("category");
+            columns[4] = Math.max(header.indexOf("description"), header.indexOf("memo"));
+        } else {
+            reader.reset();
+        }
+        return line -> parseCsv(splitCsv(line), columns);
+    }
+
+    private static Transaction parseCsv(List<String> fields, int[] columns) {
+        String dateText = field(fields, columns[0]);
+        String typeText = field(fields, columns[1]);
+        String amountText = field(fields, columns[2]).replace("$", "");
+        String category = columns[3] < 0 ? DEFAULT_CATEGORY : field(fields, columns[3]);
+        String description = field(fields, columns[4]);
+
+        LocalDate date = parseDate(dateText);
+        TransactionType type;
+        if (typeText.isEmpty()) {
+            type = amountText.startsWith("-") ? TransactionType.EXPENSE : TransactionType.INCOME;
+            if (amountText.startsWith("-") || amountText.startsWith("+")) {
+                amountText = amountText.substring(1);
+            }
+        } else {
+            try {
+                type = TransactionType.valueOf(typeText.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown type: " + typeText);
+            }
+        }
+        return toTransaction(date, type, amountText, category, description);
+    }
+
+    private static String field(List<String> fields, int column) {
+        return column >= 0 && column < fields.size() ? fields.get(column).trim() : "";
+    }
+
+    private static LocalDate parseDate(String text) {
+        try {
+            return text.indexOf('/') >= 0 ? LocalDate.parse(text, US_DATE) : LocalDate.parse(text);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid date: " + text);
+        }
+    }
+
+    // Splits one CSV line, honouring double-quoted fields and "" escapes
+    static List<String> splitCsv(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    // OFX
+    // Collects the text of up to CHUNK_SIZE <STMTTRN> blocks. Tags may share lines or span
+    // them, so the block is cut on the opening and closing tags rather than on line breaks.
+    private static List<String> readOfxRecords(BufferedReader reader) throws IOException {
+        List<String> records = new ArrayList<>(CHUNK_SIZE);
+        StringBuilder block = null;
+        String line;
+        while (records.size() < CHUNK_SIZE && (line = reader.readLine()) != null) {
+            String upper = line.toUpperCase();
+            int start = upper.indexOf("<STMTTRN>");
+            if (block == null && start < 0) continue;
+            if (block == null) {
+                block = new StringBuilder();
+                line = line.substring(start);
+                upper = upper.substring(start);
+            }
+            int end = upper.indexOf("</STMTTRN>");
+            if (end < 0) {
+                block.append(line).append('\n');
+                continue;
+            }
+            block.append(line, 0, end);
+            records.add(block.toString());
+            block = null;
+            // Another transaction may start on the same line
+            String rest = line.substring(end + "</STMTTRN>".length());
+            if (rest.toUpperCase().contains("<STMTTRN>")) {
+                block = new StringBuilder(rest.substring(rest.toUpperCase().indexOf("<STMTTRN>")));
+                block.append('\n');
+            }
+        }
+        if (block != null) {
+            records.add(block.toString());
+        }
+        return records;
+    }
+
+    private static Transaction parseOfx(String block) {
+        String dateText = ofxTag(block, "DTPOSTED");
+        String amountText = ofxTag(block, "TRNAMT");
+        String name = ofxTag(block, "NAME");
+        String memo = ofxTag(block, "MEMO");
+        if (dateText.length() < 8) throw new IllegalArgumentException("Invalid date: " + dateText);
+
+        LocalDate date;
+        try {
+            date = LocalDate.parse(dateText.substring(0, 8), OFX_DATE);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid date: " + dateText);
+        }
+        TransactionType type = amountText.startsWith("-") ? TransactionType.EXPENSE : TransactionType.INCOME;
+        if (amountText.startsWith("-") || amountText.startsWith("+")) {
+            amountText = amountText.substring(1);
+        }
+        String description = name.isEmpty() ? memo : memo.isEmpty() ? name : name + " - " + memo;
+        return toTransaction(date, type, amountText, DEFAULT_CATEGORY, description);
+    }
+
+    // Value of an SGML-style tag: everything up to the next tag or line end
+    private static String ofxTag(String block, String tag) {
+        int start = block.toUpperCase().indexOf("<" + tag + ">");
+        if (start < 0) return "";
+        start += tag.length() + 2;
+        int end = start;
+        while (end < block.length() && block.charAt(end) != '<' && block.charAt(end) != '\n') {
+            end++;
+        }
+        return block.substring(start, end).trim();
+    }
+}
+
+// RecurringRule class
+// A transaction that repeats on a schedule: "daily", "weekly", "monthly", "yearly",
+// "every N days|weeks|months|years", or a cron-like "day-of-month month day-of-week" with
+// *, lists, ranges and steps, e.g. "1,15 * *" or "* * MON-FRI". Interval schedules count
+// from the start date, so "monthly" from Jan 31 falls on the last day of shorter months.
+// A rule remembers the last date it was materialized, which is all the scheduler needs to
+// pick up where it left off after a restart.
+class RecurringRule {
+    static final String OCCURRENCE_PREFIX = "TXN_R";
+    // Feb 29 can be eight years from the previous one
+    private static final int MAX_SEARCH_DAYS = 366 * 8 + 1;
+    private static final String[] MONTH_NAMES = { "JAN", "FEB", "MAR", "APR", "MAY", "JUN",
+        "JUL", "AUG", "SEP", "OCT", "NOV", "DEC" };
+    private static final String[] DAY_NAMES = { "SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT" };
+
+    // First occurrence after the given date, or null when there is none
+    interface Schedule {
+        LocalDate next(LocalDate start, LocalDate after);
+    }
+
+    private final String id;
+    private final TransactionType type;
+    private final Money amount;
+    private final String category;
+    private final String description;
+    private final String scheduleSpec;
+    private final Schedule schedule;
+    private final LocalDate start;
+    // Last materialized occurrence, null before the first; next is null once none are left
+    private volatile LocalDate last;
+    private volatile LocalDate next;
+
+    public RecurringRule(TransactionType type, Money amount, String category, String description,
+                         String schedule, LocalDate start) {
+        this(Long.toString(TransactionIdGenerator.nextValue(), 36), type, amount, category.toUpperCase(),
+            description, schedule, start, null);
+    }
+
+    private RecurringRule(String id, TransactionType type, Money amount, String category, String description,
+                          String schedule, LocalDate start, LocalDate last) {
+        this.id = id;
+        this.type = type;
+        this.amount = amount;
+        this.category = category;
+        this.description = description;
+        this.scheduleSpec = normalize(schedule);
+        this.schedule = parseSchedule(scheduleSpec);
+        this.start = start;
+        this.last = last;
+        this.next = this.schedule.next(start, last != null ? last : start.minusDays(1));
+    }
+
+    public String getId() { return id; }
+    public TransactionType getType() { return type; }
+    public Money getAmount() { return amount; }
+    public String getCategory() { return category; }
+    public String getDescription() { return description; }
+    public String getSchedule() { return scheduleSpec; }
+    public LocalDate getStart() { return start; }
+    public LocalDate getLast() { return last; }
+    public LocalDate nextDate() { return next; }
+
+    // The occurrence due next. Its id depends only on the rule and the date, so the same
+    // occurrence materialized twice is recognized as one.
+    public Transaction occurrence() {
+        return new Transaction(occurrenceId(next), type, amount, category, description, next);
+    }
+
+    String occurrenceId(LocalDate date) {
+        return OCCURRENCE_PREFIX + id + "_" + date.format(DateTimeFormatter.BASIC_ISO_DATE);
+    }
+
+    static boolean isOccurrence(String transactionId) {
+        return transactionId.startsWith(OCCURRENCE_PREFIX);
+    }
+
+    public void advance() {
+        last = next;
+        next = schedule.next(start, last);
+    }
+
+    @Override
+    public String toString() {
+        String typeSymbol = type == TransactionType.INCOME ? "+" : "-";
+        return String.format("%-10s | %s$%-8s | %-16s | next %s | %s", category, typeSymbol, amount,
+            scheduleSpec, next != null ? next : "never", description);
+    }
+
+    // The description goes last since it may hold commas; commas of the schedule are
+    // written as semicolons, which a schedule never contains
+    public String toFileString() {
+        return String.join(",", id, type.name(), amount.toString(), category, scheduleSpec.replace(',', ';'),
+            start.toString(), last != null ? last.toString() : "-", description);
+    }
+
+    public static RecurringRule fromFileString(String fileString) {
+        try {
+            String[] parts = fileString.split(",", 8);
+            if (parts.length != 8) {
+                Metrics.RECURRING_REJECTED.increment();
+                return null;
+            }
+            return new RecurringRule(parts[0], TransactionType.valueOf(parts[1]), Money.parse(parts[2]), parts[3],
+                parts[7], parts[4].replace(';', ','), LocalDate.parse(parts[5]),
+                parts[6].equals("-") ? null : LocalDate.parse(parts[6]));
+        } catch (Exception e) {
+            Metrics.RECURRING_REJECTED.increment();
+            return null;
+        }
+    }
+
+    // Schedules
+    static String normalize(String spec) {
+        return spec.trim().toUpperCase(Locale.ROOT).replaceAll("\\s+", " ");
+    }
+
+    // Throws IllegalArgumentException with the reason when the spec is not a schedule
+    static Schedule parseSchedule(String spec) {
+        String text = normalize(spec);
+        switch (text) {
+            case "DAILY": return every(ChronoUnit.DAYS, 1);
+            case "WEEKLY": return every(ChronoUnit.WEEKS, 1);
+            case "MONTHLY": return every(ChronoUnit.MONTHS, 1);
+            case "YEARLY": return every(ChronoUnit.YEARS, 1);
+            default: break;
+        }
+        String[] fields = text.split(" ");
+        if (fields[0].equals("EVERY")) {
+            if (fields.length != 3) {
+                throw new IllegalArgumentException("Use e.g. \"every 2 weeks\"");
+            }
+            int count = parseNumber(fields[1], 1, 1000);
+            String unit = fields[2].endsWith("S") ? fields[2].substring(0, fields[2].length() - 1) : fields[2];
+            switch (unit) {
+                case "DAY": return every(ChronoUnit.DAYS, count);
+                case "WEEK": return every(ChronoUnit.WEEKS, count);
+                case "MONTH": return every(ChronoUnit.MONTHS, count);
+                case "YEAR": return every(ChronoUnit.YEARS, count);
+                default: throw new IllegalArgumentException("Unknown unit: " + fields[2]);
+            }
+        }
+        if (fields.length == 3) {
+            return cron(fields);
+        }
+        throw new IllegalArgumentException("Unknown schedule: " + spec.trim());
+    }
+
+    // Occurrences at start, start + count units, start + 2 * count units, ...
+    private static Schedule every(ChronoUnit unit, int count) {
+        return (start, after) -> {
+            if (after.isBefore(start)) return start;
+            long step = unit.between(start, after) / count * count;
+            LocalDate date = start.plus(step, unit);
+            while (!date.isAfter(after)) {
+                step += count;
+                date = start.plus(step, unit);
+            }
+            return date;
+        };
+    }
+
+    // As in cron, a date matches when both day fields are unrestricted, or either
+    // restricted one matches
+    private static Schedule cron(String[] fields) {
+        long days = parseField(fields[0], 1, 31, null);
+        long months = parseField(fields[1], 1, 12, MONTH_NAMES);
+        long weekdayBits = parseField(fields[2], 0, 7, DAY_NAMES);
+        // 0 and 7 are both Sunday
+        long weekdays = (weekdayBits & 1L << 7) != 0 ? weekdayBits | 1 : weekdayBits;
+        boolean anyDay = fields[0].equals("*");
+        boolean anyWeekday = fields[2].equals("*");
+        return (start, after) -> {
+            LocalDate date = after.isBefore(start) ? start : after.plusDays(1);
+            for (int i = 0; i < MAX_SEARCH_DAYS; i++) {
+                if ((months & 1L << date.getMonthValue()) == 0) {
+                    date = date.withDayOfMonth(1).plusMonths(1);
+                    continue;
+                }
+                boolean dayMatches = (days & 1L << date.getDayOfMonth()) != 0;
+                boolean weekdayMatches = (weekdays & 1L << date.getDayOfWeek().getValue() % 7) != 0;
+                if (anyDay || anyWeekday ? dayMatches && weekdayMatches : dayMatches || weekdayMatches) {
+                    return date;
+                }
+                date = date.plusDays(1);
+            }
+            return null;
+        };
+    }
+
+    // Bit set of the values a field allows: "*", "5", "1-5", "*/2", "MON-FRI", "1,15"
+    private static long parseField(String field, int min, int max, String[] names) {
+        long bits = 0;
+        for (String part : field.split(",")) {
+            int slash = part.indexOf('/');
+            int step = slash < 0 ? 1 : parseNumber(part.substring(slash + 1), 1, max);
+            String range = slash < 0 ? part : part.substring(0, slash);
+            int from;
+            int to;
+            if (range.equals("*")) {
+                from = min;
+                to = max;
+            } else {
+                int dash = range.indexOf('-');
+                from = parseValue(dash < 0 ? range : range.substring(0, dash), min, max, names);
+                to = dash < 0 ? (slash < 0 ? from : max) : parseValue(range.substring(dash + 1), min, max, names);
+                if (to < from) {
+                    throw new IllegalArgumentException("Backwards range: " + range);
+                }
+            }
+            for (int value = from; value <= to; value += step) {
+                bits |= 1L << value;
+            }
+        }
+        return bits;
+    }
+
+    private static int parseValue(String value, int min, int max, String[] names) {
+        if (names != null) {
+            int index = Arrays.asList(names).indexOf(value);
+            if (index >= 0) return index + min;
+        }
+        return parseNumber(value, min, max);
+    }
+
+    private static int parseNumber(String value, int min, int max) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number >= min && number <= max) return number;
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Expected a number from " + min + " to " + max + ": " + value);
+    }
+}
+
+// RecurringScheduler class
+// Materializes due occurrences of recurring rules, once at startup and then every
+// pfm.recurringMillis milliseconds (an hour by default). Rules wait in a priority queue
+// keyed on their next date, so a run only touches rules that are due: each occurrence
+// costs a poll and an offer, O(log n) however many rules there are. Occurrences go into
+// the ledger in batches with one journal write each. Rule progress is saved only after the
+// journal is synced, so it never runs ahead of the ledger; if the program stops before the
+// progress is saved, the next run recreates occurrences with the same ids, finds them
+// already in the ledger and skips them. Either way each occurrence is added exactly once.
+// A deleted occurrence is only skipped while its delete is in the journal, so deleting
+// one queues the progress first and the writer syncs it before a compaction drops the
+// delete; a restart never sees the occurrence gone with the progress still before it.
+class RecurringScheduler {
+    static final int BATCH_SIZE = 4096;
+    private static final long CHECK_MILLIS = Long.getLong("pfm.recurringMillis", 3_600_000L);
+
+    private final PersonalFinanceManager manager;
+    // In creation order
+    private final Map<String, RecurringRule> rules = new LinkedHashMap<>();
+    private final PriorityQueue<RecurringRule> due = new PriorityQueue<>(
+        Comparator.comparing(RecurringRule::nextDate).thenComparing(RecurringRule::getId));
+    private ScheduledExecutorService timer;
+
+    RecurringScheduler(PersonalFinanceManager manager, List<RecurringRule> rules) {
+        this.manager = manager;
+        for (RecurringRule rule : rules) {
+            this.rules.put(rule.getId(), rule);
+            if (rule.nextDate() != null) {
+                due.add(rule);
+            }
+        }
+    }
+
+    // Catches up, then keeps checking on a daemon thread; returns the occurrences added now
+    public synchronized int start() {
+        int added = materialize(LocalDate.now());
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "pfm-recurring");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.scheduleWithFixedDelay(() -> {
+                try {
+                    materialize(LocalDate.now());
+                } catch (RuntimeException e) {
+                    // A failed run must not cancel the later ones
+                    System.out.println("Warning: Recurring transactions failed: " + e.getMessage());
+                }
+            }, CHECK_MILLIS, CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return added;
+    }
+
+    // Adds every occurrence due on or before the given day; returns how many were new
+    public synchronized int materialize(LocalDate today) {
+        long start = System.nanoTime();
+        List<Transaction> batch = new ArrayList<>();
+        int fired = 0;
+        int added = 0;
+        while (!due.isEmpty() && !due.peek().nextDate().isAfter(today)) {
+            RecurringRule rule = due.poll();
+            batch.add(rule.occurrence());
+            rule.advance();
+            if (rule.nextDate() != null) {
+                due.add(rule);
+            }
+            fired++;
+            if (batch.size() == BATCH_SIZE) {
+                added += manager.addOccurrences(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            added += manager.addOccurrences(batch);
+        }
+        if (fired > 0) {
+            // Reconciles budgets and syncs the journal before the progress is queued
+            manager.finishImport();
+            FileManager.saveRecurringRules(rules.values());
+        }
+        Metrics.RECURRING_ADDED.add(added);
+        Metrics.RECURRING_RUN.recordSince(start);
+        return added;
+    }
+
+    // The rule's past occurrences are materialized right away
+    public synchronized int add(RecurringRule rule) {
+        rules.put(rule.getId(), rule);
+        if (rule.nextDate() != null) {
+            due.add(rule);
+        }
+        FileManager.saveRecurringRules(rules.values());
+        return materialize(LocalDate.now());
+    }
+
+    // Transactions the rule already created are kept
+    public synchronized RecurringRule remove(String id) {
+        RecurringRule rule = rules.remove(id);
+        if (rule != null) {
+            due.remove(rule);
+            FileManager.saveRecurringRules(rules.values());
+        }
+        return rule;
+    }
+
+    public synchronized List<RecurringRule> rules() {
+        return new ArrayList<>(rules.values());
+    }
+
+    // Waits out a run in progress, so the queued progress covers every occurrence in the
+    // ledger
+    public synchronized void saveProgress() {
+        FileManager.saveRecurringRules(rules.values());
+    }
+}
+
+// TransactionExporter class
+// Streams ledger rows straight from the columns into CSV, JSON-lines or fixed-width text.
+// Rows are formatted into one reused StringBuilder that is drained into a large buffered
+// writer, so exporting never materializes Transaction objects or the whole output.
+class TransactionExporter {
+    enum Format { CSV, JSONL, TEXT }
+
+    static final int BUFFER_SIZE = 1 << 16;
+    private static final String[] MONTH_DAY = new String[32];
+
+    static {
+        for (int i = 0; i < MONTH_DAY.length; i++) {
+            MONTH_DAY[i] = i < 10 ? "0" + i : Integer.toString(i);
+        }
+    }
+
+    // Formats rows of one output format; a sink is reused for every row of an export
+    abstract static class Sink {
+        private int cachedDay = Integer.MIN_VALUE;
+        private String cachedDate;
+
+        abstract void header(StringBuilder out);
+        abstract void row(Ledger ledger, int row, StringBuilder out);
+
+        // Dates repeat across neighbouring rows, so the last one formatted is kept
+        String date(int epochDay) {
+            if (epochDay != cachedDay) {
+                cachedDay = epochDay;
+                cachedDate = formatDate(LocalDate.ofEpochDay(epochDay));
+            }
+            return cachedDate;
+        }
+
+        String formatDate(LocalDate date) {
+            return date.getYear() + "-" + MONTH_DAY[date.getMonthValue()] + "-" + MONTH_DAY[date.getDayOfMonth()];
+        }
+    }
+
+    // Columns named so the file can be read back by BulkImporter
+    static class CsvSink extends Sink {
+        void header(StringBuilder out) {
+            out.append("id,date,type,amount,category,description\n");
+        }
+
+        void row(Ledger ledger, int row, StringBuilder out) {
+            out.append(ledger.id(row)).append(',')
+               .append(date(ledger.epochDay(row))).append(',')
+               .append(ledger.type(row)).append(',');
+            appendCents(out, ledger.cents(row));
+            out.append(',').append(ledger.category(row)).append(',');
+            String description = ledger.description(row);
+            if (description.indexOf(',') >= 0 || description.indexOf('"') >= 0 || description.indexOf('\n') >= 0) {
+                out.append('"').append(description.replace("\"", "\"\"")).append('"');
+            } else {
+                out.append(description);
+            }
+            out.append('\n');
+        }
+    }
+
+    static class JsonLinesSink extends Sink {
+        void header(StringBuilder out) {
+        }
+
+        void row(Ledger ledger, int row, StringBuilder out) {
+            out.append("{\"id\":");
+            appendJsonString(out, ledger.id(row));
+            out.append(",\"date\":\"").append(date(ledger.epochDay(row)))
+               .append("\",\"type\":\"").append(ledger.type(row))
+               .append("\",\"amount\":");
+            appendCents(out, ledger.cents(row));
+            out.append(",\"category\":");
+            appendJsonString(out, ledger.category(row));
+            out.append(",\"description\":");
+            appendJsonString(out, ledger.description(row));
+            out.append("}\n");
+        }
+    }
+
+    // Same layout as the console transaction list
+    static class TextSink extends Sink {
+        void header(StringBuilder out) {
+            int start = out.length();
+            out.append("Date");
+            pad(out, start, 13);
+            out.append("ID");
+            pad(out, start, 29);
+            out.append("Category");
+            pad(out, start, 42);
+            out.append("Amount");
+            pad(out, start, 53);
+            out.append("Description").append(System.lineSeparator());
+        }
+
+        String formatDate(LocalDate date) {
+            return MONTH_DAY[date.getMonthValue()] + "/" + MONTH_DAY[date.getDayOfMonth()] + "/" + date.getYear();
+        }
+
+        void row(Ledger ledger, int row, StringBuilder out) {
+            int start = out.length();
+            out.append(date(ledger.epochDay(row))).append(' ');
+            pad(out, start, 13);
+            int column = out.length();
+            out.append(ledger.id(row), 0, 8).append("... ");
+            pad(out, column, 16);
+            column = out.length();
+            out.append(ledger.category(row)).append(' ');
+            pad(out, column, 13);
+            column = out.length();
+            out.append(ledger.type(row) == TransactionType.INCOME ? "+$" : "-$");
+            appendCents(out, ledger.cents(row));
+            out.append(' ');
+            pad(out, column, 11);
+            out.append(ledger.description(row)).append(System.lineSeparator());
+        }
+    }
+
+    static Sink sink(Format format) {
+        switch (format) {
+            case CSV: return new CsvSink();
+            case JSONL: return new JsonLinesSink();
+            default: return new TextSink();
+        }
+    }
+
+    static Format formatOf(Path file) {
+        String name = file.getFileName().toString().toLowerCase();
+        if (name.endsWith(".csv")) return Format.CSV;
+        if (name.endsWith(".jsonl") || name.endsWith(".json")) return Format.JSONL;
+        return Format.TEXT;
+    }
+
+    // Writes every live row to the file and returns the number of rows written
+    public static int export(Ledger ledger, Path file, Format format) throws IOException {
+        Sink sink = sink(format);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                Files.newOutputStream(file), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            StringBuilder out = new StringBuilder(BUFFER_SIZE);
+            char[] chunk = new char[BUFFER_SIZE];
+            sink.header(out);
+            writeRows(ledger, 0, Integer.MAX_VALUE, sink, out, writer, chunk);
+            return ledger.size();
+        }
+    }
+
+    // Writes up to maxRows live rows starting at fromRow and returns the row to resume
+    // from, which is rowLimit once the ledger is exhausted. The writer is flushed but
+    // not closed, so the console can page through System.out.
+    static int writeRows(Ledger ledger, int fromRow, int maxRows, Sink sink,
+                         StringBuilder out, Writer writer, char[] chunk) throws IOException {
+        int row = fromRow;
+        int written = 0;
+        for (; row < ledger.rowLimit() && written < maxRows; row++) {
+            if (!ledger.isLive(row)) continue;
+            sink.row(ledger, row, out);
+            written++;
+            if (out.length() >= BUFFER_SIZE) {
+                drain(out, writer, chunk);
+            }
+        }
+        drain(out, writer, chunk);
+        writer.flush();
+        return row;
+    }
+
+    private static void drain(StringBuilder out, Writer writer, char[] chunk) throws IOException {
+        for (int start = 0; start < out.length(); start += chunk.length) {
+            int end = Math.min(out.length(), start + chunk.length);
+            out.getChars(start, end, chunk, 0);
+            writer.write(chunk, 0, end - start);
+        }
+        out.setLength(0);
+    }
+
+    static void appendCents(StringBuilder out, long cents) {
+        if (cents < 0) {
+            out.append('-');
+            cents = -cents;
+        }
+        out.append(cents / 100).append('.');
+        long fraction = cents % 100;
+        if (fraction < 10) out.append('0');
+        out.append(fraction);
+    }
+
+    private static void pad(StringBuilder out, int start, int width) {
+        while (out.length() - start < width) {
+            out.append(' ');
+        }
+    }
+
+    static void appendJsonString(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+}
+
+// ApiServer class
+// Headless mode: the transaction, analytics and budget operations of the console served as
+// a local HTTP JSON API on the JDK's built-in server. Each request runs on a virtual
+// thread when the runtime has them (Java 21+) and on a fixed pool otherwise; handlers call
+// the same manager methods and validation rules as the console, so both front ends can
+// share one ledger.
+//
+//   GET    /api/transactions              ?from&to&type&category&min&max, or ?q=term;
+//                                         paged with ?offset&limit
+//   POST   /api/transactions              {"type","amount","category","description"}
+//   DELETE /api/transactions/{id}
+//   GET    /api/balance
+//   GET    /api/analytics/categories
+//   GET    /api/analytics/monthly
+//   GET    /api/budgets
+//   PUT    /api/budgets/{category}        {"limit", optional "alerts": "50,90,100", "carryOver"}
+//   GET    /api/budgets/{category}/history
+//   DELETE /api/budgets/{category}
+//   GET    /api/recurring
+//   POST   /api/recurring                 {"type","amount","category","description","schedule",
+//                                          optional "start": "yyyy-MM-dd"}
+//   DELETE /api/recurring/{id}
+class ApiServer {
+    static final int DEFAULT_PORT = 8080;
+    private static final int POOL_THREADS = Integer.getInteger("pfm.serverThreads", 64);
+    private static final int BACKLOG = Integer.getInteger("pfm.serverBacklog", 4096);
+    private static final int MAX_BODY_BYTES = 64 * 1024;
+    private static final int DEFAULT_LIMIT = 100;
+    private static final int MAX_LIMIT = 1000;
+
+    private final PersonalFinanceManager manager;
+    private final HttpServer server;
+
+    // Rejected request with the status to answer it with
+    private static class ApiException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        final int status;
+
+        ApiException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    ApiServer(PersonalFinanceManager manager, int port) throws IOException {
+        this.manager = manager;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+        server.createContext("/api/transactions", exchange -> handle(exchange, this::transactions));
+        server.createContext("/api/balance", exchange -> handle(exchange, this::balance));
+        server.createContext("/api/analytics", exchange -> handle(exchange, this::analytics));
+        server.createContext("/api/budgets", exchange -> handle(exchange, this::budgets));
+        server.createContext("/api/recurring", exchange -> handle(exchange, this::recurring));
+        server.setExecutor(requestExecutor());
+    }
+
+    public void start() {
+        server.start();
+        System.out.println("Serving API on http://" + server.getAddress().getHostString() + ":"
+            + server.getAddress().getPort() + "/api");
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    // Virtual threads are looked up reflectively so the program still builds for Java 11
+    static ExecutorService requestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(POOL_THREADS, r -> {
+                Thread thread = new Thread(r, "pfm-api");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private interface Route {
+        String respond(HttpExchange exchange, String method, String resource) throws IOException;
+    }
+
+    // Runs a route and writes its JSON, or the error it raised
+    private void handle(HttpExchange exchange, Route route) throws IOException {
+        int status = 200;
+        String body;
+        try {
+            String path = exchange.getRequestURI().getRawPath();
+            String context = exchange.getHttpContext().getPath();
+            String resource = path.length() > context.length() + 1
+                ? URLDecoder.decode(path.substring(context.length() + 1), StandardCharsets.UTF_8.name())
+                : "";
+            String method = exchange.getRequestMethod();
+            body = route.respond(exchange, method, resource);
+            if (method.equals("POST")) {
+                status = 201;
+            }
+        } catch (ApiException e) {
+            status = e.status;
+            body = error(e.getMessage());
+        } catch (IllegalArgumentException e) {
+            status = 400;
+            body = error(e.getMessage());
+        } catch (RuntimeException e) {
+            status = 500;
+            body = error("Internal error");
+        }
+
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    // Routes
+    private String transactions(HttpExchange exchange, String method, String id) throws IOException {
+        if (!id.isEmpty()) {
+            if (!method.equals("DELETE")) throw notAllowed();
+            Transaction removed = manager.delete(id);
+            if (removed == null) {
+                throw new ApiException(404, "Transaction not found with ID: " + id);
+            }
+            return toJson(new StringBuilder(), removed).toString();
+        }
+
+        if (method.equals("POST")) {
+            Map<String, String> fields = parseObject(readBody(exchange));
+            TransactionType type;
+            try {
+                type = TransactionType.valueOf(required(fields, "type").trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Please enter either INCOME or EXPENSE");
+            }
+            String amount = required(fields, "amount").trim();
+            check(PersonalFinanceManager.amountError(amount));
+            String category = required(fields, "category").trim();
+            check(PersonalFinanceManager.categoryError(category));
+            String description = fields.getOrDefault("description", "").trim();
+            check(PersonalFinanceManager.descriptionError(description));
+            if (description.isEmpty()) {
+                description = "No description";
+            }
+            Transaction transaction = manager.add(
+                new Transaction(type, Money.parse(amount), category, description));
+            return toJson(new StringBuilder(), transaction).toString();
+        }
+
+        if (!method.equals("GET")) throw notAllowed();
+        Map<String, String> params = queryParams(exchange);
+        int offset = intParam(params, "offset", 0, Integer.MAX_VALUE);
+        int limit = intParam(params, "limit", DEFAULT_LIMIT, MAX_LIMIT);
+        List<Transaction> page;
+        if (params.containsKey("q")) {
+            page = manager.search(params.get("q").trim().toLowerCase(), offset, limit);
+        } else {
+            page = manager.query(toQuery(params), offset, limit);
+        }
+
+        StringBuilder out = new StringBuilder(page.size() * 160);
+        out.append("{\"offset\":").append(offset).append(",\"count\":").append(page.size())
+           .append(",\"transactions\":[");
+        for (int i = 0; i < page.size(); i++) {
+            if (i > 0) out.append(',');
+            toJson(out, page.get(i));
+        }
+        return out.append("]}").toString();
+    }
+
+    private String balance(HttpExchange exchange, String method, String resource) {
+        if (!resource.isEmpty()) throw notFound();
+        if (!method.equals("GET")) throw notAllowed();
+        long[] totals = manager.totals();
+        StringBuilder out = new StringBuilder("{\"income\":");
+        TransactionExporter.appendCents(out, totals[0]);
+        out.append(",\"expenses\":");
+        TransactionExporter.appendCents(out, totals[1]);
+        out.append(",\"balance\":");
+        TransactionExporter.appendCents(out, totals[0] - totals[1]);
+        double savingsRate = totals[0] > 0 ? (totals[0] - totals[1]) * 100.0 / totals[0] : 0;
+        out.append(",\"savingsRate\":").append(String.format(Locale.ROOT, "%.1f", savingsRate));
+        return out.append('}').toString();
+    }
+
+    private String analytics(HttpExchange exchange, String method, String resource) {
+        if (!method.equals("GET")) throw notAllowed();
+        StringBuilder out = new StringBuilder();
+        if (resource.equals("categories")) {
+            out.append("{\"categories\":[");
+            boolean first = true;
+            for (Map.Entry<String, long[]> entry : manager.categoryTotals().entrySet()) {
+                long[] totals = entry.getValue();
+                if (totals[0] == 0 && totals[1] == 0) continue;
+                out.append(first ? "" : ",").append("{\"category\":");
+                TransactionExporter.appendJsonString(out, entry.getKey());
+                out.append(",\"income\":");
+                TransactionExporter.appendCents(out, totals[0]);
+                out.append(",\"expenses\":");
+                TransactionExporter.appendCents(out, totals[1]);
+                out.append('}');
+                first = false;
+            }
+        } else if (resource.equals("monthly")) {
+            out.append("{\"months\":[");
+            boolean first = true;
+            for (long[] month : manager.monthlyTotals()) {
+                out.append(first ? "" : ",").append("{\"month\":\"").append(Ledger.yearMonth((int) month[0]))
+                   .append("\",\"income\":");
+                TransactionExporter.appendCents(out, month[1]);
+                out.append(",\"expenses\":");
+                TransactionExporter.appendCents(out, month[2]);
+                out.append(",\"net\":");
+                TransactionExporter.appendCents(out, month[1] - month[2]);
+                out.append('}');
+                first = false;
+            }
+        } else {
+            throw notFound();
+        }
+        return out.append("]}").toString();
+    }
+
+    private String budgets(HttpExchange exchange, String method, String category) throws IOException {
+        if (category.isEmpty()) {
+            if (!method.equals("GET")) throw notAllowed();
+            StringBuilder out = new StringBuilder("{\"budgets\":[");
+            boolean first = true;
+            for (Budget budget : manager.budgets()) {
+                out.append(first ? "" : ",");
+                toJson(out, budget);
+                first = false;
+            }
+            return out.append("]}").toString();
+        }
+
+        category = category.trim().toUpperCase();
+        if (category.endsWith("/HISTORY")) {
+            if (!method.equals("GET")) throw notAllowed();
+            return budgetHistory(category.substring(0, category.length() - "/HISTORY".length()));
+        }
+        check(PersonalFinanceManager.categoryError(category));
+        if (method.equals("PUT")) {
+            Map<String, String> fields = parseObject(readBody(exchange));
+            String limit = required(fields, "limit").trim();
+            check(PersonalFinanceManager.budgetLimitError(limit));
+            String thresholds = fields.get("alerts");
+            if (thresholds != null) {
+                check(PersonalFinanceManager.alertThresholdsError(thresholds));
+            }
+            String carryOver = fields.get("carryOver");
+            if (carryOver != null && !carryOver.equals("true") && !carryOver.equals("false")) {
+                throw new IllegalArgumentException("carryOver must be true or false");
+            }
+            manager.setBudget(category, Money.parse(limit), carryOver == null ? null : carryOver.equals("true"));
+            if (thresholds != null) {
+                manager.setAlertThresholds(category, Budget.parseAlertThresholds(thresholds));
+            }
+        } else if (method.equals("DELETE")) {
+            if (!manager.removeBudget(category)) {
+                throw new ApiException(404, "No budget found for category: " + category);
+            }
+            return "{\"removed\":" + jsonString(category) + "}";
+        } else if (!method.equals("GET")) {
+            throw notAllowed();
+        }
+        for (Budget budget : manager.budgets()) {
+            if (budget.getCategory().equals(category)) {
+                return toJson(new StringBuilder(), budget).toString();
+            }
+        }
+        throw new ApiException(404, "No budget found for category: " + category);
+    }
+
+    private String recurring(HttpExchange exchange, String method, String id) throws IOException {
+        if (!id.isEmpty()) {
+            if (!method.equals("DELETE")) throw notAllowed();
+            RecurringRule removed = manager.removeRecurring(id);
+            if (removed == null) {
+                throw new ApiException(404, "Recurring transaction not found with ID: " + id);
+            }
+            return toJson(new StringBuilder(), removed).toString();
+        }
+
+        if (method.equals("POST")) {
+            Map<String, String> fields = parseObject(readBody(exchange));
+            TransactionType type;
+            try {
+                type = TransactionType.valueOf(required(fields, "type").trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Please enter either INCOME or EXPENSE");
+            }
+            String amount = required(fields, "amount").trim();
+            check(PersonalFinanceManager.amountError(amount));
+            String category = required(fields, "category").trim();
+            check(PersonalFinanceManager.categoryError(category));
+            String description = fields.getOrDefault("description", "").trim();
+            check(PersonalFinanceManager.descriptionError(description));
+            if (description.isEmpty()) {
+                description = "No description";
+            }
+            String schedule = required(fields, "schedule");
+            check(PersonalFinanceManager.scheduleError(schedule));
+            LocalDate start;
+            try {
+                start = fields.containsKey("start") ? LocalDate.parse(fields.get("start").trim()) : LocalDate.now();
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("start must be a date as yyyy-MM-dd");
+            }
+            RecurringRule rule = new RecurringRule(type, Money.parse(amount), category, description, schedule, start);
+            if (rule.nextDate() == null) {
+                throw new IllegalArgumentException("The schedule has no dates after " + start);
+            }
+            int added = manager.addRecurring(rule);
+            StringBuilder out = toJson(new StringBuilder(), rule);
+            out.setLength(out.length() - 1);
+            return out.append(",\"added\":").append(added).append('}').toString();
+        }
+
+        if (!method.equals("GET")) throw notAllowed();
+        StringBuilder out = new StringBuilder("{\"recurring\":[");
+        List<RecurringRule> rules = manager.recurringRules();
+        for (int i = 0; i < rules.size(); i++) {
+            if (i > 0) out.append(',');
+            toJson(out, rules.get(i));
+        }
+        return out.append("]}").toString();
+    }
+
+    private String budgetHistory(String category) {
+        List<long[]> periods = manager.budgetHistory(category);
+        if (periods.isEmpty()) {
+            throw new ApiException(404, "No budget found for category: " + category);
+        }
+        StringBuilder out = new StringBuilder("{\"category\":");
+        TransactionExporter.appendJsonString(out, category);
+        out.append(",\"periods\":[");
+        for (int i = 0; i < periods.size(); i++) {
+            long[] period = periods.get(i);
+            out.append(i > 0 ? "," : "").append("{\"period\":\"").append(Ledger.yearMonth((int) period[0]))
+               .append("\",\"limit\":");
+            TransactionExporter.appendCents(out, period[1]);
+            out.append(",\"carryIn\":");
+            TransactionExporter.appendCents(out, period[2]);
+            out.append(",\"spending\":");
+            TransactionExporter.appendCents(out, period[3]);
+            out.append(",\"remaining\":");
+            TransactionExporter.appendCents(out, period[1] + period[2] - period[3]);
+            out.append('}');
+        }
+        return out.append("]}").toString();
+    }
+
+    // Requests
+    private static TransactionQuery toQuery(Map<String, String> params) {
+        TransactionQuery query = new TransactionQuery();
+        try {
+            if (params.containsKey("from")) query.from(LocalDate.parse(params.get("from")));
+            if (params.containsKey("to")) query.to(LocalDate.parse(params.get("to")));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Dates must be in yyyy-MM-dd format");
+        }
+        try {
+            if (params.containsKey("type")) query.type(TransactionType.valueOf(params.get("type").toUpperCase()));
+            if (params.containsKey("min")) query.minAmount(Money.parse(params.get("min")));
+            if (params.containsKey("max")) query.maxAmount(Money.parse(params.get("max")));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Please enter INCOME/EXPENSE and valid numbers");
+        }
+        if (params.containsKey("category")) {
+            query.categories(Arrays.asList(params.get("category").split("\\s*,\\s*")));
+        }
+        return query;
+    }
+
+    private static Map<String, String> queryParams(HttpExchange exchange) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) return params;
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            if (!value.isEmpty()) {
+                params.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private static int intParam(Map<String, String> params, String name, int defaultValue, int max) {
+        String value = params.get(name);
+        if (value == null) return defaultValue;
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed >= 0) return Math.min(parsed, max);
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid " + name + ": " + value);
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = exchange.getRequestBody()) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                body.write(buffer, 0, read);
+                if (body.size() > MAX_BODY_BYTES) {
+                    throw new ApiException(413, "Request body too large");
+                }
+            }
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String required(Map<String, String> fields, String name) {
+        String value = fields.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing field: " + name);
+        }
+        return value;
+    }
+
+    private static void check(String error) {
+        if (error != null) {
+            throw new IllegalArgumentException(error);
+        }
+    }
+
+    private static ApiException notFound() {
+        return new ApiException(404, "Not found");
+    }
+
+    private static ApiException notAllowed() {
+        return new ApiException(405, "Method not allowed");
+    }
+
+    // Flat JSON object of string, number, boolean or null members; values are kept as text
+    static Map<String, String> parseObject(String json) {
+        Map<String, String> fields = new HashMap<>();
+        int[] position = { skipSpace(json, 0) };
+        expect(json, position, '{');
+        if (peek(json, position) == '}') {
+            position[0]++;
+        } else {
+            while (true) {
+                String name = parseString(json, position);
+                expect(json, position, ':');
+                fields.put(name, parseValue(json, position));
+                char next = peek(json, position);
+                position[0]++;
+                if (next == '}') break;
+                if (next != ',') throw new IllegalArgumentException("Malformed JSON");
+            }
+        }
+        if (skipSpace(json, position[0]) != json.length()) {
+            throw new IllegalArgumentException("Malformed JSON");
+        }
+        return fields;
+    }
+
+    private static String parseValue(String json, int[] position) {
+        if (peek(json, position) == '"') {
+            return parseString(json, position);
+        }
+        int start = position[0];
+        int end = start;
+        while (end < json.length() && ",}] \t\r\n".indexOf(json.charAt(end)) < 0) {
+            end++;
+        }
+        String literal = json.substring(start, end);
+        if (literal.isEmpty() || literal.startsWith("{") || literal.startsWith("[")) {
+            throw new IllegalArgumentException("Malformed JSON");
+        }
+        position[0] = end;
+        return literal.equals("null") ? null : literal;
+    }
+
+    private static String parseString(String json, int[] position) {
+        expect(json, position, '"');
+        StringBuilder value = new StringBuilder();
+        int i = position[0];
+        while (true) {
+            if (i >= json.length()) throw new IllegalArgumentException("Malformed JSON");
+            char c = json.charAt(i++);
+            if (c == '"') break;
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            if (i >= json.length()) throw new IllegalArgumentException("Malformed JSON");
+            char escaped = json.charAt(i++);
+            switch (escaped) {
+                case 'b': value.append('\b'); break;
+                case 'f': value.append('\f'); break;
+                case 'n': value.append('\n'); break;
+                case 'r': value.append('\r'); break;
+                case 't': value.append('\t'); break;
+                case 'u':
+                    if (i + 4 > json.length()) throw new IllegalArgumentException("Malformed JSON");
+                    try {
+                        value.append((char) Integer.parseInt(json.substring(i, i + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Malformed JSON");
+                    }
+                    i += 4;
+                    break;
+                default: value.append(escaped);
+            }
+        }
+        position[0] = i;
+        return value.toString();
+    }
+
+    private static void expect(String json, int[] position, char expected) {
+        if (peek(json, position) != expected) {
+            throw new IllegalArgumentException("Malformed JSON");
+        }
+        position[0]++;
+    }
+
+    // Next non-blank character, leaving the position on it
+    private static char peek(String json, int[] position) {
+        position[0] = skipSpace(json, position[0]);
+        if (position[0] >= json.length()) {
+            throw new IllegalArgumentException("Malformed JSON");
+        }
+        return json.charAt(position[0]);
+    }
+
+    private static int skipSpace(String json, int i) {
+        while (i < json.length() && Character.isWhitespace(json.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    // Responses
+    private static StringBuilder toJson(StringBuilder out, Transaction transaction) {
+        out.append("{\"id\":");
+        TransactionExporter.appendJsonString(out, transaction.getId());
+        out.append(",\"date\":\"").append(transaction.getDate())
+           .append("\",\"type\":\"").append(transaction.getType())
+           .append("\",\"amount\":");
+        TransactionExporter.appendCents(out, transaction.getAmount().cents());
+        out.append(",\"category\":");
+        TransactionExporter.appendJsonString(out, transaction.getCategory());
+        out.append(",\"description\":");
+        TransactionExporter.appendJsonString(out, transaction.getDescription());
+        return out.append('}');
+    }
+
+    private static StringBuilder toJson(StringBuilder out, RecurringRule rule) {
+        out.append("{\"id\":");
+        TransactionExporter.appendJsonString(out, rule.getId());
+        out.append(",\"type\":\"").append(rule.getType()).append("\",\"amount\":");
+        TransactionExporter.appendCents(out, rule.getAmount().cents());
+        out.append(",\"category\":");
+        TransactionExporter.appendJsonString(out, rule.getCategory());
+        out.append(",\"description\":");
+        TransactionExporter.appendJsonString(out, rule.getDescription());
+        out.append(",\"schedule\":");
+        TransactionExporter.appendJsonString(out, rule.getSchedule());
+        out.append(",\"start\":\"").append(rule.getStart()).append('"');
+        out.append(",\"last\":").append(rule.getLast() != null ? "\"" + rule.getLast() + "\"" : "null");
+        out.append(",\"next\":").append(rule.nextDate() != null ? "\"" + rule.nextDate() + "\"" : "null");
+        return out.append('}');
+    }
+
+    private static StringBuilder toJson(StringBuilder out, Budget budget) {
+        Money spending = budget.getCurrentSpending();
+        Money limit = budget.getMonthlyLimit();
+        double usage = budget.getUsagePercentage();
+        out.append("{\"category\":");
+        TransactionExporter.appendJsonString(out, budget.getCategory());
+        out.append(",\"limit\":");
+        TransactionExporter.appendCents(out, limit.cents());
+        out.append(",\"spending\":");
+        TransactionExporter.appendCents(out, spending.cents());
+        out.append(",\"remaining\":");
+        TransactionExporter.appendCents(out, budget.getRemainingBudget().cents());
+        out.append(",\"period\":\"").append(Ledger.yearMonth(budget.period()))
+           .append("\",\"carryOver\":").append(budget.isCarryOver()).append(",\"carryIn\":");
+        TransactionExporter.appendCents(out, budget.getCarryIn().cents());
+        out.append(",\"alerts\":").append(Arrays.toString(budget.getAlertThresholds()).replace(" ", ""));
+        out.append(",\"usage\":").append(String.format(Locale.ROOT, "%.1f", usage))
+           .append(",\"status\":\"").append(usage > 100 ? "OVER" : usage > 90 ? "WARNING" : "GOOD");
+        return out.append("\"}");
+    }
+
+    private static String jsonString(String value) {
+        StringBuilder out = new StringBuilder();
+        TransactionExporter.appendJsonString(out, value);
+        return out.toString();
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + jsonString(message) + "}";
+    }
+}
+
+// Metrics class
+// Runtime instrumentation of persistence, parsing, indexing, queries and reports.
+// Counters are LongAdders. Latencies go into lock-free log-linear histograms: the range of
+// every power of two is split into 16 equal buckets (as HdrHistogram does with one
+// significant digit), so a recorded value lands in its bucket with one atomic increment and
+// percentiles are accurate to about 6%. Everything is shown by the Runtime Metrics menu
+// and published as the JMX MBean "PersonalFinanceManager:type=Metrics".
+final class Metrics {
+    private static final Map<String, Counter> COUNTERS = new ConcurrentSkipListMap<>();
+    private static final Map<String, Histogram> HISTOGRAMS = new ConcurrentSkipListMap<>();
+
+    // Persistence (nanoseconds)
+    static final Histogram STORE_LOAD = histogram("store.load");
+    static final Histogram STORE_SAVE = histogram("store.save");
+    static final Histogram PARTITION_LOAD = histogram("store.loadPartition");
+    static final Histogram JOURNAL_COMMIT = histogram("journal.commit");
+    static final Histogram JOURNAL_COMPACTION = histogram("journal.compaction");
+    static final Histogram BUDGETS_SAVE = histogram("budgets.save");
+    static final Histogram RECURRING_SAVE = histogram("recurring.save");
+    // Indexing, queries and reports (nanoseconds)
+    static final Histogram SEARCH_INDEX_LOAD = histogram("index.search.load");
+    static final Histogram DATE_INDEX_BUILD = histogram("index.date.build");
+    static final Histogram ANALYTICS_BUILD = histogram("analytics.build");
+    static final Histogram SEARCH = histogram("query.search");
+    static final Histogram FILTER = histogram("query.filter");
+    static final Histogram CATEGORY_REPORT = histogram("report.categories");
+    static final Histogram MONTHLY_REPORT = histogram("report.monthly");
+    static final Histogram RECURRING_RUN = histogram("recurring.run");
+
+    static final Counter ROWS_PARSED = counter("rows.parsed");
+    static final Counter ROWS_REJECTED = counter("rows.rejected");
+    static final Counter BUDGETS_REJECTED = counter("budgets.rejected");
+    static final Counter JOURNAL_CORRUPT_RECORDS = counter("journal.corruptRecords");
+    static final Counter JOURNAL_SKIPPED_FRAMES = counter("journal.skippedFrames");
+    static final Counter JOURNAL_TORN_FRAMES = counter("journal.tornFrames");
+    static final Counter FRAMES_DECRYPTED = counter("store.framesDecrypted");
+    static final Counter IMPORT_REJECTED = counter("import.rejected");
+    static final Counter STORE_WARNINGS = counter("store.warnings");
+    static final Counter TRANSACTIONS_ADDED = counter("transactions.added");
+    static final Counter TRANSACTIONS_DELETED = counter("transactions.deleted");
+    static final Counter ALERTS_FIRED = counter("alerts.fired");
+    static final Counter ALERTS_FAILED = counter("alerts.failed");
+    static final Counter RECURRING_ADDED = counter("recurring.added");
+    static final Counter RECURRING_DUPLICATES = counter("recurring.duplicates");
+    static final Counter RECURRING_REJECTED = counter("recurring.rejected");
+
+    static final String OBJECT_NAME = "PersonalFinanceManager:type=Metrics";
+
+    static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        void increment() { value.increment(); }
+        void add(long amount) { value.add(amount); }
+        long get() { return value.sum(); }
+    }
+
+    static final class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long value) {
+            long v = Math.max(0, value);
+            counts.incrementAndGet(index(v));
+            total.add(v);
+            max.accumulate(v);
+        }
+
+        void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        // Values below 16 have a bucket each; above, bucket = (power of two, top 4 bits below it)
+        static int index(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        // Largest value that falls in the bucket
+        static long highestValue(int index) {
+            if (index < SUB_BUCKETS) return index;
+            int shift = index / SUB_BUCKETS - 1;
+            long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+
+        Snapshot snapshot() {
+            long[] copy = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = counts.get(i);
+            }
+            return new Snapshot(copy, total.sum(), max.get());
+        }
+    }
+
+    // A consistent view of one histogram; counts recorded meanwhile may be partly included
+    static final class Snapshot {
+        private final long[] counts;
+        final long count;
+        final long total;
+        final long max;
+
+        Snapshot(long[] counts, long total, long max) {
+            long count = 0;
+            for (long bucket : counts) count += bucket;
+            this.counts = counts;
+            this.count = count;
+            this.total = total;
+            this.max = max;
+        }
+
+        double mean() {
+            return count == 0 ? 0 : (double) total / count;
+        }
+
+        long percentile(double percent) {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(percent / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(Histogram.highestValue(i), max);
+            }
+            return max;
+        }
+    }
+
+    static Counter counter(String name) {
+        return COUNTERS.computeIfAbsent(name, n -> new Counter());
+    }
+
+    static Histogram histogram(String name) {
+        return HISTOGRAMS.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    static Map<String, Counter> counters() {
+        return Collections.unmodifiableMap(COUNTERS);
+    }
+
+    static Map<String, Histogram> histograms() {
+        return Collections.unmodifiableMap(HISTOGRAMS);
+    }
+
+    static double millis(double nanos) {
+        return nanos / 1_000_000;
+    }
+
+    // JMX
+    // Attributes are read-only and built from the registries: each counter by its name, each
+    // histogram as "<name>.count" plus mean, p50, p90, p99 and max in milliseconds.
+    private static final String[] HISTOGRAM_STATS = { "count", "meanMillis", "p50Millis", "p90Millis", "p99Millis", "maxMillis" };
+
+    static void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MBean(), name);
+            }
+        } catch (JMException | SecurityException e) {
+            // Metrics stay available from the menu
+        }
+    }
+
+    private static final class MBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Counter counter = COUNTERS.get(attribute);
+            if (counter != null) return counter.get();
+            int dot = attribute.lastIndexOf('.');
+            Histogram histogram = dot < 0 ? null : HISTOGRAMS.get(attribute.substring(0, dot));
+            if (histogram == null) throw new AttributeNotFoundException(attribute);
+            Snapshot snapshot = histogram.snapshot();
+            switch (attribute.substring(dot + 1)) {
+                case "count": return snapshot.count;
+                case "meanMillis": return millis(snapshot.mean());
+                case "p50Millis": return millis(snapshot.percentile(50));
+                case "p90Millis": return millis(snapshot.percentile(90));
+                case "p99Millis": return millis(snapshot.percentile(99));
+                case "maxMillis": return millis(snapshot.max);
+                default: throw new AttributeNotFoundException(attribute);
+            }
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList values = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    values.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // Left out, as the DynamicMBean contract allows
+                }
+            }
+            return values;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(action));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String name : COUNTERS.keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, "long", "Counter " + name, true, false, false));
+            }
+            for (String name : HISTOGRAMS.keySet()) {
+                for (String stat : HISTOGRAM_STATS) {
+                    attributes.add(new MBeanAttributeInfo(name + "." + stat, stat.equals("count") ? "long" : "double",
+                        "Latency " + stat + " of " + name, true, false, false));
+                }
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Personal Finance Manager runtime metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
+
+// Main PersonalFinanceManager class
+public class PersonalFinanceManager {
+    private Ledger transactions;
+    private LedgerAggregates aggregates;
+    private SearchIndex searchIndex;
+    private DateIndex dateIndex;
+    // Budgets keyed by their (upper case) category
+    private Map<String, Budget> budgets;
+    private final BudgetAlerts alerts = BudgetAlerts.fromSystemProperties();
+    private final RecurringScheduler recurring;
+    private Scanner scanner;
+    // Rows shown per page when listing transactions
+    private static final int PAGE_SIZE = 50;
+    private static final Money MAX_AMOUNT = Money.ofCents(100_000_000);
+
+    // Several sessions may work on one manager. The ledger and its indexes are guarded by
+    // a StampedLock: writers hold it only for the in-memory update and the journal enqueue,
+    // scalar totals are read optimistically without blocking, and scans take the read lock.
+    // Mutations are single-writer on purpose. A row number is the position of an append, and
+    // the aggregates, posting lists and date index all take rows in that order, as replay
+    // takes journal records, so striped appends would need rows reserved up front and
+    // indexes that accept them out of order. The write lock covers no disk I/O: encryption
+    // and fsync run on the store's writer thread, and imports and recurring occurrences take
+    // it once per batch rather than once per row.
+    // Budgets are striped by category: an expense and the budget it counts against change
+    // under the category's stripe, so a budget being reconciled sees both or neither.
+    private final StampedLock ledgerLock = new StampedLock();
+    private static final int CATEGORY_STRIPES = 16;
+    private final Object[] categoryLocks = new Object[CATEGORY_STRIPES];
+
+    public PersonalFinanceManager() {
+        this.transactions = FileManager.loadTransactions();
+        this.aggregates = LedgerAggregates.build(transactions);
+        this.searchIndex = FileManager.loadSearchIndex(transactions);
+        this.dateIndex = DateIndex.build(transactions);
+        // Older partitions loaded on demand join the indexes; the aggregates already hold them
+        transactions.addAttachListener((month, firstRow, store) -> {
+            searchIndex.append(FileManager.loadPartitionSearch(month, store), firstRow);
+            searchIndex.indexCategories(transactions.categoryColumn(), firstRow, firstRow + store.rows());
+            for (int row = firstRow; row < firstRow + store.rows(); row++) {
+                dateIndex.add(row, transactions.epochDay(row));
+            }
+        });
+        this.budgets = new ConcurrentSkipListMap<>();
+        for (int i = 0; i < CATEGORY_STRIPES; i++) {
+            categoryLocks[i] = new Object();
+        }
+        for (Budget budget : FileManager.loadBudgets()) {
+            budgets.put(budget.getCategory(), budget);
+        }
+        this.scanner = new Scanner(System.in);
+        reconcileBudgets();
+        this.recurring = new RecurringScheduler(this, FileManager.loadRecurringRules());
+    }
+
+    public void run() {
+        System.out.println("Welcome to Personal Finance Manager!");
+        System.out.println("Your data is securely loaded. " + transactions.size() + " transactions found.");
+        int occurrences = startRecurring();
+        if (occurrences > 0) {
+            System.out.println(occurrences + " recurring transactions added.");
+        }
+
+        while (true) {
+            displayMainMenu();
+            String choice = scanner.nextLine().trim();
+
+            try {
+                switch (choice) {
+                    case "1":
+                        transactionManagement();
+                        break;
+                    case "2":
+                        financialAnalytics();
+                        break;
+                    case "3":
+                        budgetPlanning();
+                        break;
+                    case "4":
+                        viewMetrics();
+                        break;
+                    case "5":
+                        System.out.println("Saving your data...");
+                        FileManager.saveBudgets(budgets.values());
+                        FileManager.flush();
+                        BudgetAlerts.flush();
+                        System.out.println("Thank you for using Personal Finance Manager!");
+                        return;
+                    default:
+                        System.out.println("Invalid choice. Please enter 1-5.");
+                }
+            } catch (Exception e) {
+                System.out.println("Unexpected error: " + e.getMessage());
+                System.out.println("Please try again.");
+            }
+        }
+    }
+
+    private void displayMainMenu() {
+        System.out.println("\n" + "=".repeat(50));
+        System.out.println("            MAIN MENU");
+        System.out.println("=".repeat(50));
+        System.out.println("1. Transaction Management");
+        System.out.println("2. Financial Analytics");
+        System.out.println("3. Budget Planning");
+        System.out.println("4. Runtime Metrics");
+        System.out.println("5. Exit");
+        System.out.println("-".repeat(50));
+        System.out.print("Choose option (1-5): ");
+    }
+
+    // Runtime Metrics
+    private void viewMetrics() {
+        System.out.println("\n--- Runtime Metrics ---");
+        System.out.println("Counters:");
+        for (Map.Entry<String, Metrics.Counter> counter : Metrics.counters().entrySet()) {
+            System.out.printf("  %-24s %12d%n", counter.getKey(), counter.getValue().get());
+        }
+        System.out.printf("Latencies (ms):%n  %-24s %8s %10s %10s %10s %10s %10s%n",
+            "", "count", "mean", "p50", "p90", "p99", "max");
+        for (Map.Entry<String, Metrics.Histogram> histogram : Metrics.histograms().entrySet()) {
+            Metrics.Snapshot snapshot = histogram.getValue().snapshot();
+            if (snapshot.count == 0) continue;
+            System.out.printf("  %-24s %8d %10.3f %10.3f %10.3f %10.3f %10.3f%n", histogram.getKey(), snapshot.count,
+                Metrics.millis(snapshot.mean()), Metrics.millis(snapshot.percentile(50)),
+                Metrics.millis(snapshot.percentile(90)), Metrics.millis(snapshot.percentile(99)),
+                Metrics.millis(snapshot.max));
+        }
+        System.out.println("Also published over JMX as " + Metrics.OBJECT_NAME);
+    }
+
+    // Transaction Management Module
+    private void transactionManagement() {
+        while (true) {
+            System.out.println("\n" + "=".repeat(50));
+            System.out.println("      TRANSACTION MANAGEMENT");
+            System.out.println("=".repeat(50));
+            System.out.println("1. Add Transaction");
+            System.out.println("2. View All Transactions");
+            System.out.println("3. Search Transactions");
+            System.out.println("4. Delete Transaction");
+            System.out.println("5. View Current Balance");
+            System.out.println("6. Filter Transactions");
+            System.out.println("7. Export Transactions");
+            System.out.println("8. Recurring Transactions");
+            System.out.println("9. Back to Main Menu");
+            System.out.print("Choose option (1-9): ");
+
+            String choice = scanner.nextLine().trim();
+            switch (choice) {
+                case "1":
+                    addTransaction();
+                    break;
+                case "2":
+                    viewAllTransactions();
+                    break;
+                case "3":
+                    searchTransactions();
+                    break;
+                case "4":
+                    deleteTransaction();
+                    break;
+                case "5":
+                    viewCurrentBalance();
+                    break;
+                case "6":
+                    filterTransactions();
+                    break;
+                case "7":
+                    exportTransactions();
+                    break;
+                case "8":
+                    recurringTransactions();
+                    break;
+                case "9":
+                    return;
+                default:
+                    System.out.println("Invalid choice. Please enter 1-9.");
+            }
+        }
+    }
+
+    private void addTransaction() {
+        System.out.println("\n--- Add New Transaction ---");
+
+        // Transaction Type
+        TransactionType type = null;
+        while (type == null) {
+            System.out.print("Type (INCOME/EXPENSE): ");
+            String typeInput = scanner.nextLine().trim().toUpperCase();
+            try {
+                type = TransactionType.valueOf(typeInput);
+            } catch (IllegalArgumentException e) {
+                System.out.println("Error: Please enter either INCOME or EXPENSE");
+            }
+        }
+
+        // Amount
+        Money amount = null;
+        while (amount == null) {
+            System.out.print("Amount: $");
+            String amountInput = scanner.nextLine().trim();
+            if (validateAmount(amountInput)) {
+                amount = Money.parse(amountInput);
+            }
+        }
+
+        // Category
+        String category = null;
+        while (category == null) {
+            System.out.print("Category: ");
+            category = scanner.nextLine().trim();
+            if (!validateCategory(category)) {
+                category = null;
+            }
+        }
+
+        // Description
+        System.out.print("Description: ");
+        String description = scanner.nextLine().trim();
+        if (description.isEmpty()) {
+            description = "No description";
+        }
+
+        // Create and add transaction
+        Transaction transaction = add(new Transaction(type, amount, category, description));
+
+        System.out.println("Transaction added successfully!");
+        System.out.println("Details: " + transaction);
+    }
+
+    private void viewAllTransactions() {
+        loadMonths(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        if (transactions.isEmpty()) {
+            System.out.println("No transactions found.");
+            return;
+        }
+
+        System.out.println("\n--- All Transactions (" + transactions.size() + ") ---");
+        // Rows are streamed a page at a time through one buffered writer rather than
+        // formatted individually with printf
+        TransactionExporter.Sink sink = TransactionExporter.sink(TransactionExporter.Format.TEXT);
+        Writer console = new BufferedWriter(new OutputStreamWriter(System.out), TransactionExporter.BUFFER_SIZE);
+        StringBuilder out = new StringBuilder();
+        char[] chunk = new char[TransactionExporter.BUFFER_SIZE];
+        try {
+            sink.header(out);
+            out.append("-".repeat(80)).append(System.lineSeparator());
+            int row = 0;
+            while (true) {
+                // Rows never move, so the lock is held per page and not while waiting for input
+                long stamp = ledgerLock.readLock();
+                boolean more;
+                try {
+                    row = TransactionExporter.writeRows(transactions, row, PAGE_SIZE, sink, out, console, chunk);
+                    more = row < transactions.rowLimit();
+                } finally {
+                    ledgerLock.unlockRead(stamp);
+                }
+                if (!more) break;
+                System.out.print("-- Press Enter for more, or q to stop -- ");
+                if (scanner.nextLine().trim().equalsIgnoreCase("q")) break;
+            }
+        } catch (IOException e) {
+            System.out.println("Error: Could not display transactions");
+            return;
+        }
+
+        long[] totals = totals();
+        Money totalIncome = Money.ofCents(totals[0]);
+        Money totalExpenses = Money.ofCents(totals[1]);
+
+        System.out.println("-".repeat(80));
+        System.out.printf("Total Income: +$%s | Total Expenses: -$%s | Net: $%s%n",
+            totalIncome, totalExpenses, totalIncome.minus(totalExpenses));
+    }
+
+    private void exportTransactions() {
+        System.out.print("Enter export file (.csv, .jsonl or .txt): ");
+        String fileName = scanner.nextLine().trim();
+        if (fileName.isEmpty()) {
+            System.out.println("Error: File name cannot be empty");
+            return;
+        }
+        exportTo(fileName);
+    }
+
+    void exportTo(String fileName) {
+        try {
+            Path file = Paths.get(fileName);
+            loadMonths(Integer.MIN_VALUE, Integer.MAX_VALUE);
+            int rows;
+            long stamp = ledgerLock.readLock();
+            try {
+                rows = TransactionExporter.export(transactions, file, TransactionExporter.formatOf(file));
+            } finally {
+                ledgerLock.unlockRead(stamp);
+            }
+            System.out.println("Exported " + rows + " transactions to " + file);
+        } catch (IOException | InvalidPathException e) {
+            System.out.println("Error: Could not export transactions to " + fileName);
+        }
+    }
+
+    private void searchTransactions() {
+        System.out.print("Enter search term (category/description): ");
+        String searchTerm = scanner.nextLine().trim().toLowerCase();
+
+        List<Transaction> results = search(searchTerm);
+
+        if (results.isEmpty()) {
+            System.out.println("No transactions found matching: " + searchTerm);
+            return;
+        }
+
+        System.out.println("\n--- Search Results (" + results.size() + " transactions) ---");
+        for (Transaction result : results) {
+            System.out.println(result);
+        }
+    }
+
+    private void filterTransactions() {
+        System.out.println("\n--- Filter Transactions (leave blank for any) ---");
+        TransactionQuery query = new TransactionQuery();
+        try {
+            System.out.print("From date (yyyy-MM-dd): ");
+            String from = scanner.nextLine().trim();
+            if (!from.isEmpty()) query.from(LocalDate.parse(from));
+
+            System.out.print("To date (yyyy-MM-dd): ");
+            String to = scanner.nextLine().trim();
+            if (!to.isEmpty()) query.to(LocalDate.parse(to));
+
+            System.out.print("Type (INCOME/EXPENSE): ");
+            String type = scanner.nextLine().trim().toUpperCase();
+            if (!type.isEmpty()) query.type(TransactionType.valueOf(type));
+
+            System.out.print("Categories (comma separated): ");
+            String categories = scanner.nextLine().trim();
+            if (!categories.isEmpty()) query.categories(Arrays.asList(categories.split("\\s*,\\s*")));
+
+            System.out.print("Minimum amount: $");
+            String min = scanner.nextLine().trim();
+            if (!min.isEmpty()) query.minAmount(Money.parse(min));
+
+            System.out.print("Maximum amount: $");
+            String max = scanner.nextLine().trim();
+            if (!max.isEmpty()) query.maxAmount(Money.parse(max));
+        } catch (DateTimeParseException e) {
+            System.out.println("Error: Dates must be in yyyy-MM-dd format");
+            return;
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error: Please enter INCOME/EXPENSE and valid numbers");
+            return;
+        }
+
+        List<Transaction> results = query(query);
+        if (results.isEmpty()) {
+            System.out.println("No transactions match the filter.");
+            return;
+        }
+
+        System.out.println("\n--- Filter Results (" + results.size() + " transactions) ---");
+        for (Transaction result : results) {
+            System.out.println(result);
+        }
+    }
+
+    // Query API
+    public List<Transaction> query(TransactionQuery query) {
+        return query(query, 0, Integer.MAX_VALUE);
+    }
+
+    // Up to limit matches after skipping offset; only the returned rows are materialized
+    public List<Transaction> query(TransactionQuery query, int offset, int limit) {
+        long start = System.nanoTime();
+        loadMonths(Ledger.monthIndex(query.fromDay()), Ledger.monthIndex(query.toDay()));
+        long stamp = ledgerLock.readLock();
+        try {
+            return transactionsAt(dateIndex.query(query, transactions), offset, limit);
+        } finally {
+            ledgerLock.unlockRead(stamp);
+            Metrics.FILTER.recordSince(start);
+        }
+    }
+
+    // Transactions whose category or description contains the lower-case term
+    public List<Transaction> search(String term) {
+        return search(term, 0, Integer.MAX_VALUE);
+    }
+
+    public List<Transaction> search(String term, int offset, int limit) {
+        long start = System.nanoTime();
+        loadMonths(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        long stamp = ledgerLock.readLock();
+        try {
+            return transactionsAt(searchIndex.search(term, transactions), offset, limit);
+        } finally {
+            ledgerLock.unlockRead(stamp);
+            Metrics.SEARCH.recordSince(start);
+        }
+    }
+
+    private List<Transaction> transactionsAt(int[] rows, int offset, int limit) {
+        List<Transaction> results = new ArrayList<>();
+        for (int i = offset; i < rows.length && results.size() < limit; i++) {
+            results.add(transactions.get(rows[i]));
+        }
+        return results;
+    }
+
+    // Records a validated transaction, journals it and counts it against its budget. The
+    // budgets are saved only when one of them changed.
+    public Transaction add(Transaction transaction) {
+        boolean budgetChanged = false;
+        synchronized (categoryLock(transaction.getCategory())) {
+            long stamp = ledgerLock.writeLock();
+            try {
+                record(transaction);
+                FileManager.appendTransaction(transaction, transactions);
+            } finally {
+                ledgerLock.unlockWrite(stamp);
+            }
+            Budget budget = budgets.get(transaction.getCategory());
+            if (transaction.getType() == TransactionType.EXPENSE && budget != null) {
+                // Outside the budget's period it is a rollover or a change to past carry-over
+                if (Ledger.monthIndex((int) transaction.getDate().toEpochDay()) == budget.period()) {
+                    long spent = budget.addSpending(transaction.getAmount());
+                    alerts.spendingChanged(budget, spent - transaction.getAmount().cents(), spent);
+                } else {
+                    reconcileBudget(budget);
+                }
+                budgetChanged = true;
+            }
+        }
+        if (budgetChanged) {
+            FileManager.saveBudgets(budgets.values());
+        }
+        return transaction;
+    }
+
+    // Deletes a transaction by id; returns it, or null if there is no live one
+    public Transaction delete(String id) {
+        // Queued ahead of the delete; taken before any lock, as a scheduler run takes them
+        if (RecurringRule.isOccurrence(id)) {
+            recurring.saveProgress();
+        }
+        // The lookup may open older partitions, which changes the ledger
+        int row;
+        Transaction toRemove;
+        long stamp = ledgerLock.writeLock();
+        try {
+            row = transactions.rowOf(id);
+            if (row < 0) return null;
+            toRemove = transactions.get(row);
+        } finally {
+            ledgerLock.unlockWrite(stamp);
+        }
+
+        boolean budgetChanged = false;
+        synchronized (categoryLock(toRemove.getCategory())) {
+            stamp = ledgerLock.writeLock();
+            try {
+                // Another session may have deleted it in between
+                if (!transactions.isLive(row)) return null;
+                aggregates.subtract(transactions, row);
+                transactions.delete(row);
+                Metrics.TRANSACTIONS_DELETED.increment();
+                FileManager.appendDeletion(id, transactions);
+            } finally {
+                ledgerLock.unlockWrite(stamp);
+            }
+
+            // Update budget if it was an expense
+            Budget budget = budgets.get(toRemove.getCategory());
+            if (toRemove.getType() == TransactionType.EXPENSE && budget != null) {
+                if (Ledger.monthIndex((int) toRemove.getDate().toEpochDay()) == budget.period()) {
+                    budget.removeSpending(toRemove.getAmount());
+                    budgetChanged = true;
+                } else if (budget.isCarryOver()) {
+                    reconcileBudget(budget);
+                    budgetChanged = true;
+                }
+            }
+        }
+        if (budgetChanged) {
+            FileManager.saveBudgets(budgets.values());
         }
+        return toRemove;
     }
 
-    private void displayMainMenu() {
-        System.out.println("\n" + "=".repeat(50));
-        System.out.println("            MAIN MENU");
-        System.out.println("=".repeat(50));
-        System.out.println("1. Transaction Management");
-        System.out.println("2. Financial Analytics");
-        System.out.println("3. Budget Planning");
-        System.out.println("4. Exit");
-        System.out.println("-".repeat(50));
-        System.out.print("Choose option (1-4): ");
-    }
-
-    // Transaction Management Module
-    private void transactionManagement() {
+    // Recurring Transactions
+    private void recurringTransactions() {
         while (true) {
-            System.out.println("\n" + "=".repeat(50));
-            System.out.println("      TRANSACTION MANAGEMENT");
-            System.out.println("=".repeat(50));
-            System.out.println("1. Add Transaction");
-            System.out.println("2. View All Transactions");
-            System.out.println("3. Search Transactions");
-            System.out.println("4. Delete Transaction");
-            System.out.println("5. View Current Balance");
-            System.out.println("6. Back to Main Menu");
-            System.out.print("Choose option (1-6): ");
+            System.out.println("\n--- Recurring Transactions ---");
+            System.out.println("1. Add Recurring Transaction");
+            System.out.println("2. View Recurring Transactions");
+            System.out.println("3. Remove Recurring Transaction");
+            System.out.println("4. Back");
+            System.out.print("Choose option (1-4): ");
 
             String choice = scanner.nextLine().trim();
             switch (choice) {
                 case "1":
-                    addTransaction();
+                    addRecurringTransaction();
                     break;
                 case "2":
-                    viewAllTransactions();
+                    viewRecurringTransactions();
                     break;
                 case "3":
-                    searchTransactions();
+                    removeRecurringTransaction();
                     break;
                 case "4":
-                    deleteTransaction();
-                    break;
-                case "5":
-                    viewCurrentBalance();
-                    break;
-                case "6":
                     return;
                 default:
-                    System.out.println("Invalid choice. Please enter 1-6.");
+                    System.out.println("Invalid choice. Please enter 1-4.");
             }
         }
     }
 
-    private void addTransaction() {
-        System.out.println("\n--- Add New Transaction ---");
+    private void addRecurringTransaction() {
+        System.out.println("\n--- Add Recurring Transaction ---");
 
-        // Transaction Type
         TransactionType type = null;
         while (type == null) {
             System.out.print("Type (INCOME/EXPENSE): ");
@@ -360,17 +5868,15 @@ public class PersonalFinanceManager {
             }
         }
 
-        // Amount
-        double amount = 0;
-        while (amount == 0) {
+        Money amount = null;
+        while (amount == null) {
             System.out.print("Amount: $");
             String amountInput = scanner.nextLine().trim();
             if (validateAmount(amountInput)) {
-                amount = Double.parseDouble(amountInput);
+                amount = Money.parse(amountInput);
             }
         }
 
-        // Category
         String category = null;
         while (category == null) {
             System.out.print("Category: ");
@@ -380,87 +5886,93 @@ public class PersonalFinanceManager {
             }
         }
 
-        // Description
         System.out.print("Description: ");
         String description = scanner.nextLine().trim();
         if (description.isEmpty()) {
             description = "No description";
         }
 
-        // Create and add transaction
-        Transaction transaction = new Transaction(type, amount, category, description);
-        transactions.add(transaction);
+        String schedule = null;
+        while (schedule == null) {
+            System.out.print("Schedule (daily, weekly, monthly, yearly, every N days/weeks/months, "
+                + "or \"day month weekday\" e.g. \"1,15 * *\"): ");
+            schedule = scanner.nextLine().trim();
+            String error = scheduleError(schedule);
+            if (error != null) {
+                System.out.println("Error: " + error);
+                schedule = null;
+            }
+        }
 
-        // Update budget spending if it's an expense
-        if (type == TransactionType.EXPENSE) {
-            updateBudgetForCategory(category, amount);
+        LocalDate start = null;
+        while (start == null) {
+            System.out.print("Start date (YYYY-MM-DD, Enter for today): ");
+            String startInput = scanner.nextLine().trim();
+            try {
+                start = startInput.isEmpty() ? LocalDate.now() : LocalDate.parse(startInput);
+            } catch (DateTimeParseException e) {
+                System.out.println("Error: Please enter a date as YYYY-MM-DD");
+            }
         }
 
-        System.out.println("Transaction added successfully!");
-        System.out.println("Details: " + transaction);
-        
-        // Auto-save
-        FileManager.saveTransactions(transactions);
-        FileManager.saveBudgets(budgets);
+        RecurringRule rule = new RecurringRule(type, amount, category, description, schedule, start);
+        if (rule.nextDate() == null) {
+            System.out.println("Error: The schedule has no dates after " + start);
+            return;
+        }
+        int added = addRecurring(rule);
+        System.out.println("Recurring transaction added! Next: " + (rule.nextDate() != null ? rule.nextDate() : "never"));
+        if (added > 0) {
+            System.out.println(added + " past occurrences added.");
+        }
     }
 
-    private void viewAllTransactions() {
-        if (transactions.isEmpty()) {
-            System.out.println("No transactions found.");
+    private void viewRecurringTransactions() {
+        List<RecurringRule> rules = recurringRules();
+        if (rules.isEmpty()) {
+            System.out.println("No recurring transactions.");
             return;
         }
+        System.out.println("\n--- Recurring Transactions ---");
+        for (int i = 0; i < rules.size(); i++) {
+            System.out.printf("%d. %s%n", i + 1, rules.get(i));
+        }
+    }
 
-        System.out.println("\n--- All Transactions (" + transactions.size() + ") ---");
-        System.out.printf("%-12s %-15s %-12s %-10s %s%n", 
-            "Date", "ID", "Category", "Amount", "Description");
-        System.out.println("-".repeat(80));
+    private void removeRecurringTransaction() {
+        viewRecurringTransactions();
+        List<RecurringRule> rules = recurringRules();
+        if (rules.isEmpty()) return;
 
-        double totalIncome = 0;
-        double totalExpenses = 0;
-
-        for (Transaction t : transactions) {
-            String amountStr = (t.getType() == TransactionType.INCOME ? "+$" : "-$") + 
-                             String.format("%.2f", t.getAmount());
-            System.out.printf("%-12s %-15s %-12s %-10s %s%n",
-                t.getDate().format(DateTimeFormatter.ofPattern("MM/dd/yyyy")),
-                t.getId().substring(0, 8) + "...",
-                t.getCategory(),
-                amountStr,
-                t.getDescription());
-
-            if (t.getType() == TransactionType.INCOME) {
-                totalIncome += t.getAmount();
-            } else {
-                totalExpenses += t.getAmount();
+        System.out.print("Enter number to remove: ");
+        String input = scanner.nextLine().trim();
+        try {
+            int index = Integer.parseInt(input) - 1;
+            if (index >= 0 && index < rules.size() && removeRecurring(rules.get(index).getId()) != null) {
+                System.out.println("Recurring transaction removed. Transactions it already added are kept.");
+                return;
             }
+        } catch (NumberFormatException e) {
+            // reported below
         }
-
-        System.out.println("-".repeat(80));
-        System.out.printf("Total Income: +$%.2f | Total Expenses: -$%.2f | Net: $%.2f%n",
-            totalIncome, totalExpenses, (totalIncome - totalExpenses));
+        System.out.println("No recurring transaction numbered: " + input);
     }
 
-    private void searchTransactions() {
-        System.out.print("Enter search term (category/description): ");
-        String searchTerm = scanner.nextLine().trim().toLowerCase();
+    // Starts the scheduler; returns the occurrences that came due while the program was not running
+    int startRecurring() {
+        return recurring.start();
+    }
 
-        List<Transaction> results = new ArrayList<>();
-        for (Transaction t : transactions) {
-            if (t.getCategory().toLowerCase().contains(searchTerm) ||
-                t.getDescription().toLowerCase().contains(searchTerm)) {
-                results.add(t);
-            }
-        }
+    int addRecurring(RecurringRule rule) {
+        return recurring.add(rule);
+    }
 
-        if (results.isEmpty()) {
-            System.out.println("No transactions found matching: " + searchTerm);
-            return;
-        }
+    RecurringRule removeRecurring(String id) {
+        return recurring.remove(id);
+    }
 
-        System.out.println("\n--- Search Results (" + results.size() + " transactions) ---");
-        for (Transaction result : results) {
-            System.out.println(result);
-        }
+    List<RecurringRule> recurringRules() {
+        return recurring.rules();
     }
 
     private void deleteTransaction() {
@@ -470,24 +5982,7 @@ public class PersonalFinanceManager {
         System.out.print("Enter transaction ID to delete: ");
         String id = scanner.nextLine().trim();
 
-        Transaction toRemove = null;
-        for (Transaction t : transactions) {
-            if (t.getId().equals(id)) {
-                toRemove = t;
-                break;
-            }
-        }
-
-        if (toRemove != null) {
-            transactions.remove(toRemove);
-            
-            // Update budget if it was an expense
-            if (toRemove.getType() == TransactionType.EXPENSE) {
-                updateBudgetSpending();
-            }
-            
-            FileManager.saveTransactions(transactions);
-            FileManager.saveBudgets(budgets);
+        if (delete(id) != null) {
             System.out.println("Transaction deleted successfully!");
         } else {
             System.out.println("Transaction not found with ID: " + id);
@@ -495,25 +5990,18 @@ public class PersonalFinanceManager {
     }
 
     private void viewCurrentBalance() {
-        double totalIncome = 0;
-        double totalExpenses = 0;
-
-        for (Transaction t : transactions) {
-            if (t.getType() == TransactionType.INCOME) {
-                totalIncome += t.getAmount();
-            } else {
-                totalExpenses += t.getAmount();
-            }
-        }
+        long[] totals = totals();
+        Money totalIncome = Money.ofCents(totals[0]);
+        Money totalExpenses = Money.ofCents(totals[1]);
 
-        double balance = totalIncome - totalExpenses;
+        Money balance = totalIncome.minus(totalExpenses);
 
         System.out.println("\n--- Current Financial Summary ---");
-        System.out.printf("Total Income:  +$%.2f%n", totalIncome);
-        System.out.printf("Total Expenses: -$%.2f%n", totalExpenses);
-        System.out.printf("Current Balance: $%.2f%n", balance);
+        System.out.printf("Total Income:  +$%s%n", totalIncome);
+        System.out.printf("Total Expenses: -$%s%n", totalExpenses);
+        System.out.printf("Current Balance: $%s%n", balance);
         
-        if (balance < 0) {
+        if (balance.signum() < 0) {
             System.out.println("Warning: You have a negative balance!");
         }
     }
@@ -550,98 +6038,70 @@ public class PersonalFinanceManager {
     }
 
     private void spendingByCategory() {
-        Map<String, Double> categorySpending = new HashMap<>();
-        Map<String, Double> categoryIncome = new HashMap<>();
-
-        for (Transaction t : transactions) {
-            String category = t.getCategory();
-            if (t.getType() == TransactionType.EXPENSE) {
-                categorySpending.put(category, 
-                    categorySpending.getOrDefault(category, 0.0) + t.getAmount());
-            } else {
-                categoryIncome.put(category,
-                    categoryIncome.getOrDefault(category, 0.0) + t.getAmount());
-            }
+        Map<String, long[]> totals = categoryTotals();
+        String[] names = totals.keySet().toArray(new String[0]);
+        long[] categorySpending = new long[names.length];
+        long[] categoryIncome = new long[names.length];
+        for (int id = 0; id < names.length; id++) {
+            categoryIncome[id] = totals.get(names[id])[0];
+            categorySpending[id] = totals.get(names[id])[1];
         }
 
         System.out.println("\n--- Spending by Category ---");
-        if (categorySpending.isEmpty()) {
-            System.out.println("No expense data available.");
-        } else {
-            List<Map.Entry<String, Double>> sortedSpending = new ArrayList<>(categorySpending.entrySet());
-            sortedSpending.sort(Map.Entry.comparingByValue(Comparator.reverseOrder()));
-            
-            for (Map.Entry<String, Double> entry : sortedSpending) {
-                System.out.printf("%-15s: $%-8.2f%n", entry.getKey(), entry.getValue());
-            }
-        }
+        printCategoryTotals(names, categorySpending, "No expense data available.");
 
         System.out.println("\n--- Income by Category ---");
-        if (categoryIncome.isEmpty()) {
-            System.out.println("No income data available.");
-        } else {
-            List<Map.Entry<String, Double>> sortedIncome = new ArrayList<>(categoryIncome.entrySet());
-            sortedIncome.sort(Map.Entry.comparingByValue(Comparator.reverseOrder()));
-            
-            for (Map.Entry<String, Double> entry : sortedIncome) {
-                System.out.printf("%-15s: $%-8.2f%n", entry.getKey(), entry.getValue());
-            }
+        printCategoryTotals(names, categoryIncome, "No income data available.");
+    }
+
+    private void printCategoryTotals(String[] names, long[] totals, String emptyMessage) {
+        List<Integer> sorted = new ArrayList<>();
+        for (int id = 0; id < totals.length; id++) {
+            if (totals[id] != 0) sorted.add(id);
+        }
+        if (sorted.isEmpty()) {
+            System.out.println(emptyMessage);
+            return;
+        }
+
+        sorted.sort((a, b) -> Long.compare(totals[b], totals[a]));
+        for (int id : sorted) {
+            System.out.printf("%-15s: $%-8s%n", names[id], Money.format(totals[id]));
         }
     }
 
     private void monthlySummary() {
-        Map<YearMonth, Double> monthlyIncome = new HashMap<>();
-        Map<YearMonth, Double> monthlyExpenses = new HashMap<>();
-
-        for (Transaction t : transactions) {
-            YearMonth month = YearMonth.from(t.getDate());
-            if (t.getType() == TransactionType.INCOME) {
-                monthlyIncome.put(month, 
-                    monthlyIncome.getOrDefault(month, 0.0) + t.getAmount());
-            } else {
-                monthlyExpenses.put(month, 
-                    monthlyExpenses.getOrDefault(month, 0.0) + t.getAmount());
-            }
-        }
+        List<long[]> months = monthlyTotals();
 
         System.out.println("\n--- Monthly Summary ---");
-        if (monthlyIncome.isEmpty() && monthlyExpenses.isEmpty()) {
+        if (months.isEmpty()) {
             System.out.println("No transaction data available.");
             return;
         }
 
-        Set<YearMonth> allMonths = new TreeSet<>(monthlyIncome.keySet());
-        allMonths.addAll(monthlyExpenses.keySet());
-
-        for (YearMonth month : allMonths) {
-            double income = monthlyIncome.getOrDefault(month, 0.0);
-            double expenses = monthlyExpenses.getOrDefault(month, 0.0);
-            double net = income - expenses;
+        for (long[] month : months) {
+            Money income = Money.ofCents(month[1]);
+            Money expenses = Money.ofCents(month[2]);
+            Money net = income.minus(expenses);
             
-            System.out.printf("%s: Income: $%.2f | Expenses: $%.2f | Net: $%.2f%n",
-                month, income, expenses, net);
+            System.out.printf("%s: Income: $%s | Expenses: $%s | Net: $%s%n",
+                Ledger.yearMonth((int) month[0]), income, expenses, net);
         }
     }
 
     private void cashFlowAnalysis() {
-        double totalIncome = 0;
-        double totalExpenses = 0;
-
-        for (Transaction t : transactions) {
-            if (t.getType() == TransactionType.INCOME) {
-                totalIncome += t.getAmount();
-            } else {
-                totalExpenses += t.getAmount();
-            }
-        }
+        long[] totals = totals();
+        Money totalIncome = Money.ofCents(totals[0]);
+        Money totalExpenses = Money.ofCents(totals[1]);
 
-        double netCashFlow = totalIncome - totalExpenses;
-        double savingsRate = totalIncome > 0 ? (netCashFlow / totalIncome) * 100 : 0;
+        Money netCashFlow = totalIncome.minus(totalExpenses);
+        // The rate is a ratio, so it alone goes through double
+        double savingsRate = totalIncome.signum() > 0 ? netCashFlow.toDouble() / totalIncome.toDouble() * 100 : 0;
 
         System.out.println("\n--- Cash Flow Analysis ---");
-        System.out.printf("Total Cash Inflow:  $%.2f%n", totalIncome);
-        System.out.printf("Total Cash Outflow: $%.2f%n", totalExpenses);
-        System.out.printf("Net Cash Flow:      $%.2f%n", netCashFlow);
+        System.out.printf("Total Cash Inflow:  $%s%n", totalIncome);
+        System.out.printf("Total Cash Outflow: $%s%n", totalExpenses);
+        System.out.printf("Net Cash Flow:      $%s%n", netCashFlow);
         System.out.printf("Savings Rate:       %.1f%%%n", savingsRate);
 
         if (savingsRate > 20) {
@@ -663,8 +6123,10 @@ public class PersonalFinanceManager {
             System.out.println("2. View Budget Status");
             System.out.println("3. Budget vs Actual");
             System.out.println("4. Remove Budget");
-            System.out.println("5. Back to Main Menu");
-            System.out.print("Choose option (1-5): ");
+            System.out.println("5. Set Alert Thresholds");
+            System.out.println("6. Budget History");
+            System.out.println("7. Back to Main Menu");
+            System.out.print("Choose option (1-7): ");
 
             String choice = scanner.nextLine().trim();
             switch (choice) {
@@ -681,9 +6143,15 @@ public class PersonalFinanceManager {
                     removeBudget();
                     break;
                 case "5":
+                    setAlertThresholds();
+                    break;
+                case "6":
+                    budgetHistory();
+                    break;
+                case "7":
                     return;
                 default:
-                    System.out.println("Invalid choice. Please enter 1-5.");
+                    System.out.println("Invalid choice. Please enter 1-7.");
             }
         }
     }
@@ -702,30 +6170,88 @@ public class PersonalFinanceManager {
             return;
         }
 
-        double limit = Double.parseDouble(limitInput);
+        Money limit = Money.parse(limitInput);
 
-        // Check if budget already exists
-        Budget existingBudget = null;
-        for (Budget budget : budgets) {
-            if (budget.getCategory().equals(category)) {
-                existingBudget = budget;
-                break;
-            }
-        }
+        System.out.print("Carry unused budget over to next month? (y/n, Enter to keep): ");
+        String carryInput = scanner.nextLine().trim().toLowerCase();
+        Boolean carryOver = carryInput.startsWith("y") ? Boolean.TRUE
+            : carryInput.startsWith("n") ? Boolean.FALSE : null;
 
-        if (existingBudget != null) {
-            existingBudget.setMonthlyLimit(limit);
-            existingBudget.resetSpending();
-            updateBudgetSpending();
+        if (setBudget(category, limit, carryOver)) {
+            System.out.println("New budget created for category: " + category);
+        } else {
             System.out.println("Budget updated for category: " + category);
+        }
+    }
+
+    private void setAlertThresholds() {
+        System.out.print("Enter category for alerts: ");
+        String category = scanner.nextLine().trim().toUpperCase();
+        if (!budgets.containsKey(category)) {
+            System.out.println("No budget found for category: " + category);
+            return;
+        }
+
+        System.out.print("Alert at percentages of the limit (e.g. 50,90,100): ");
+        String input = scanner.nextLine().trim();
+        String error = alertThresholdsError(input);
+        if (error != null) {
+            System.out.println("Error: " + error);
+            return;
+        }
+
+        if (setAlertThresholds(category, Budget.parseAlertThresholds(input))) {
+            System.out.println("Alert thresholds updated for category: " + category);
         } else {
-            Budget newBudget = new Budget(category, limit);
-            updateBudgetForCategory(category, 0);
-            budgets.add(newBudget);
-            System.out.println("New budget created for category: " + category);
+            System.out.println("No budget found for category: " + category);
+        }
+    }
+
+    // Returns false when the upper-case category has no budget
+    public boolean setAlertThresholds(String category, int[] thresholds) {
+        synchronized (categoryLock(category)) {
+            Budget budget = budgets.get(category);
+            if (budget == null) return false;
+            budget.setAlertThresholds(thresholds);
+        }
+        FileManager.saveBudgets(budgets.values());
+        return true;
+    }
+
+    // Creates or updates the budget of an upper-case category; returns whether it is new
+    public boolean setBudget(String category, Money limit) {
+        return setBudget(category, limit, null);
+    }
+
+    // The limit applies from the current month on; a null carryOver keeps the current setting
+    public boolean setBudget(String category, Money limit, Boolean carryOver) {
+        boolean created;
+        synchronized (categoryLock(category)) {
+            Budget existingBudget = budgets.get(category);
+            created = existingBudget == null;
+            Budget budget = created ? new Budget(category, limit) : existingBudget;
+            budget.setMonthlyLimit(Ledger.currentMonth(), limit);
+            if (carryOver != null) {
+                budget.setCarryOver(carryOver);
+            }
+            reconcileBudget(budget);
+            if (created) {
+                budgets.put(category, budget);
+            }
         }
+        FileManager.saveBudgets(budgets.values());
+        return created;
+    }
 
-        FileManager.saveBudgets(budgets);
+    public boolean removeBudget(String category) {
+        boolean removed;
+        synchronized (categoryLock(category)) {
+            removed = budgets.remove(category) != null;
+        }
+        if (removed) {
+            FileManager.saveBudgets(budgets.values());
+        }
+        return removed;
     }
 
     private void viewBudgetStatus() {
@@ -734,12 +6260,13 @@ public class PersonalFinanceManager {
             return;
         }
 
-        System.out.println("\n--- Current Budget Status ---");
-        for (Budget budget : budgets) {
+        rollBudgets();
+        System.out.println("\n--- Current Budget Status (" + Ledger.yearMonth(Ledger.currentMonth()) + ") ---");
+        for (Budget budget : budgets.values()) {
             System.out.println(budget);
             if (budget.isOverBudget()) {
                 System.out.println("   You've exceeded your budget by $" + 
-                    String.format("%.2f", Math.abs(budget.getRemainingBudget())));
+                    budget.getRemainingBudget().abs());
             }
         }
     }
@@ -750,22 +6277,44 @@ public class PersonalFinanceManager {
             return;
         }
 
-        System.out.println("\n--- Budget vs Actual Spending ---");
-        for (Budget budget : budgets) {
-            double actual = budget.getCurrentSpending();
-            double planned = budget.getMonthlyLimit();
-            double variance = planned - actual;
+        rollBudgets();
+        System.out.println("\n--- Budget vs Actual Spending (" + Ledger.yearMonth(Ledger.currentMonth()) + ") ---");
+        for (Budget budget : budgets.values()) {
+            Money actual = budget.getCurrentSpending();
+            Money planned = budget.getEffectiveLimit();
+            Money variance = planned.minus(actual);
             double percentage = budget.getUsagePercentage();
 
             System.out.printf("%s:%n", budget.getCategory());
-            System.out.printf("   Planned: $%.2f | Actual: $%.2f | Variance: $%.2f%n",
+            System.out.printf("   Planned: $%s | Actual: $%s | Variance: $%s%n",
                 planned, actual, variance);
+            if (budget.getCarryIn().signum() > 0) {
+                System.out.printf("   Includes $%s carried over from last month%n", budget.getCarryIn());
+            }
             System.out.printf("   Usage: %.1f%% %s%n", percentage,
                 percentage > 100 ? "(OVER)" : percentage > 90 ? "(WARNING)" : "(GOOD)");
             System.out.println();
         }
     }
 
+    private void budgetHistory() {
+        if (budgets.isEmpty()) {
+            System.out.println("No budgets set. Create a budget first!");
+            return;
+        }
+
+        System.out.println("\n--- Budget History ---");
+        for (Budget budget : budgets.values()) {
+            System.out.printf("%s%s:%n", budget.getCategory(), budget.isCarryOver() ? " (carry-over)" : "");
+            for (long[] period : budgetHistory(budget.getCategory())) {
+                long planned = period[1] + period[2];
+                System.out.printf("   %s: Planned: $%s | Actual: $%s | Variance: $%s%s%n",
+                    Ledger.yearMonth((int) period[0]), Money.format(planned), Money.format(period[3]),
+                    Money.format(planned - period[3]), period[3] > planned ? " (OVER)" : "");
+            }
+        }
+    }
+
     private void removeBudget() {
         viewBudgetStatus();
         if (budgets.isEmpty()) return;
@@ -773,17 +6322,7 @@ public class PersonalFinanceManager {
         System.out.print("Enter category to remove budget: ");
         String category = scanner.nextLine().trim().toUpperCase();
 
-        Budget toRemove = null;
-        for (Budget budget : budgets) {
-            if (budget.getCategory().equals(category)) {
-                toRemove = budget;
-                break;
-            }
-        }
-
-        if (toRemove != null) {
-            budgets.remove(toRemove);
-            FileManager.saveBudgets(budgets);
+        if (removeBudget(category)) {
             System.out.println("Budget removed for category: " + category);
         } else {
             System.out.println("No budget found for category: " + category);
@@ -792,81 +6331,333 @@ public class PersonalFinanceManager {
 
     // Validation Methods
     private boolean validateAmount(String input) {
+        String error = amountError(input);
+        if (error != null) {
+            System.out.println("Error: " + error);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean validateCategory(String category) {
+        String error = categoryError(category);
+        if (error != null) {
+            System.out.println("Error: " + error);
+            return false;
+        }
+        return true;
+    }
+
+    // Validation rules shared by the prompts and the bulk importer; null means valid
+    static String amountError(String input) {
         try {
-            double amount = Double.parseDouble(input);
-            if (amount <= 0) {
-                System.out.println("Error: Amount must be positive");
-                return false;
+            Money amount = Money.parse(input);
+            if (amount.signum() <= 0) {
+                return "Amount must be positive";
             }
-            if (amount > 1000000) {
-                System.out.println("Error: Amount too large (max: 1,000,000)");
-                return false;
+            if (amount.compareTo(MAX_AMOUNT) > 0) {
+                return "Amount too large (max: 1,000,000)";
             }
-            return true;
+            return null;
         } catch (NumberFormatException e) {
-            System.out.println("Error: Please enter a valid number");
-            return false;
+            return "Please enter a valid number";
         }
     }
 
-    private boolean validateCategory(String category) {
+    static String categoryError(String category) {
         if (category == null || category.trim().isEmpty()) {
-            System.out.println("Error: Category cannot be empty");
-            return false;
+            return "Category cannot be empty";
         }
         if (category.length() > 20) {
-            System.out.println("Error: Category too long (max: 20 characters)");
-            return false;
+            return "Category too long (max: 20 characters)";
         }
         if (category.contains(",") || category.contains(";")) {
-            System.out.println("Error: Category cannot contain special characters");
+            return "Category cannot contain special characters";
+        }
+        return null;
+    }
+
+    private boolean validateBudgetLimit(String input) {
+        String error = budgetLimitError(input);
+        if (error != null) {
+            System.out.println("Error: " + error);
             return false;
         }
         return true;
     }
 
-    private boolean validateBudgetLimit(String input) {
+    static String budgetLimitError(String input) {
         try {
-            double limit = Double.parseDouble(input);
-            if (limit < 0) {
-                System.out.println("Error: Budget limit cannot be negative");
-                return false;
+            Money limit = Money.parse(input);
+            if (limit.signum() < 0) {
+                return "Budget limit cannot be negative";
             }
-            return true;
+            return null;
         } catch (NumberFormatException e) {
-            System.out.println("Error: Please enter a valid number for budget");
-            return false;
+            return "Please enter a valid number for budget";
+        }
+    }
+
+    static String alertThresholdsError(String input) {
+        if (input == null || input.trim().isEmpty()) {
+            return "Enter at least one percentage";
+        }
+        try {
+            Budget.parseAlertThresholds(input);
+            return null;
+        } catch (NumberFormatException e) {
+            return "Thresholds must be whole percentages";
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
         }
     }
 
+    static String scheduleError(String schedule) {
+        if (schedule == null || schedule.trim().isEmpty()) {
+            return "Schedule cannot be empty";
+        }
+        if (schedule.indexOf(';') >= 0) {
+            return "Separate lists with commas";
+        }
+        try {
+            RecurringRule.parseSchedule(schedule);
+            return null;
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+    }
+
+    // Descriptions are stored one per journal line
+    static String descriptionError(String description) {
+        if (description.indexOf('\n') >= 0 || description.indexOf('\r') >= 0) {
+            return "Description cannot contain line breaks";
+        }
+        return null;
+    }
+
+    // Bulk Import Methods
+    // Imported rows go straight into the ledger and its indexes with one journal write per
+    // batch; budgets are left alone until finishImport reconciles them once
+    void importBatch(List<Transaction> batch) {
+        long stamp = ledgerLock.writeLock();
+        try {
+            for (Transaction transaction : batch) {
+                record(transaction);
+            }
+            FileManager.appendTransactions(batch, transactions);
+        } finally {
+            ledgerLock.unlockWrite(stamp);
+        }
+    }
+
+    // Occurrences of recurring rules go in like an import batch, except that ids already in
+    // the ledger are skipped: occurrence ids come from the rule and the date, so those were
+    // journaled before a restart that lost the rules' progress. Returns how many went in.
+    int addOccurrences(List<Transaction> batch) {
+        long stamp = ledgerLock.writeLock();
+        try {
+            List<Transaction> added = new ArrayList<>(batch.size());
+            for (Transaction transaction : batch) {
+                int month = Ledger.monthIndex((int) transaction.getDate().toEpochDay());
+                if (transactions.rowOf(transaction.getId(), month) != -1) {
+                    Metrics.RECURRING_DUPLICATES.increment();
+                    continue;
+                }
+                record(transaction);
+                added.add(transaction);
+            }
+            if (!added.isEmpty()) {
+                FileManager.appendTransactions(added, transactions);
+            }
+            return added.size();
+        } finally {
+            ledgerLock.unlockWrite(stamp);
+        }
+    }
+
+    void finishImport() {
+        reconcileBudgets();
+        FileManager.saveBudgets(budgets.values());
+        FileManager.flush();
+        BudgetAlerts.flush();
+    }
+
     // Helper Methods
-    private void updateBudgetSpending() {
-        // Reset all budget spending
-        for (Budget budget : budgets) {
-            budget.resetSpending();
+    // Callers hold the write lock
+    private int record(Transaction transaction) {
+        int row = transactions.add(transaction);
+        Metrics.TRANSACTIONS_ADDED.increment();
+        aggregates.add(transactions, row);
+        searchIndex.index(row, transaction.getDescription());
+        searchIndex.indexCategory(row, transactions.categoryColumn()[row]);
+        dateIndex.add(row, transactions.epochDay(row));
+        return row;
+    }
+
+    // Budget spending comes from the per-category expense totals, so reconciling
+    // costs one lookup per budget rather than a replay of the ledger
+    void reconcileBudgets() {
+        for (Budget budget : budgets.values()) {
+            synchronized (categoryLock(budget.getCategory())) {
+                reconcileBudget(budget);
+            }
+        }
+    }
+
+    // Sets the budget to the current month's spending and carry-over, rolling it into a new
+    // period when the month has changed. Callers hold the category's stripe, so no expense
+    // of it is half applied.
+    private void reconcileBudget(Budget budget) {
+        int month = Ledger.currentMonth();
+        long spent;
+        long before;
+        long stamp = ledgerLock.readLock();
+        try {
+            List<long[]> periods = budgetPeriods(budget, month);
+            long[] current = periods.get(periods.size() - 1);
+            spent = current[3];
+            before = budget.startPeriod(month, spent, current[2]);
+        } finally {
+            ledgerLock.unlockRead(stamp);
+        }
+        alerts.spendingChanged(budget, before, spent);
+    }
+
+    // Budgets of categories without new expenses roll over here, before they are shown
+    private void rollBudgets() {
+        int month = Ledger.currentMonth();
+        for (Budget budget : budgets.values()) {
+            if (budget.period() != month) {
+                synchronized (categoryLock(budget.getCategory())) {
+                    reconcileBudget(budget);
+                }
+            }
+        }
+    }
+
+    // { month index, limit, carried in, spent } for each month from the budget's first up to
+    // the given one, from the monthly buckets of the aggregates. Unused budget carries into
+    // the next month when carry-over is on; overspending is not carried. Callers hold the
+    // ledger lock.
+    private List<long[]> budgetPeriods(Budget budget, int toMonth) {
+        int categoryId = transactions.categories().idOf(budget.getCategory());
+        List<long[]> periods = new ArrayList<>();
+        long carry = 0;
+        for (int month = Math.min(budget.firstMonth(), toMonth); month <= toMonth; month++) {
+            Money limit = budget.limitFor(month);
+            long limitCents = limit == null ? 0 : limit.cents();
+            long spent = aggregates.categoryExpenses(categoryId, month);
+            periods.add(new long[] { month, limitCents, carry, spent });
+            carry = budget.isCarryOver() ? Math.max(0, Math.addExact(limitCents, carry) - spent) : 0;
+        }
+        return periods;
+    }
+
+    // Past and current periods of a budget, oldest first; empty when there is no budget
+    List<long[]> budgetHistory(String category) {
+        Budget budget = budgets.get(category);
+        if (budget == null) return Collections.emptyList();
+        long stamp = ledgerLock.readLock();
+        try {
+            return budgetPeriods(budget, Ledger.currentMonth());
+        } finally {
+            ledgerLock.unlockRead(stamp);
         }
+    }
 
-        // Update spending from transactions
-        for (Transaction transaction : transactions) {
-            if (transaction.getType() == TransactionType.EXPENSE) {
-                updateBudgetForCategory(transaction.getCategory(), transaction.getAmount());
+    private Object categoryLock(String category) {
+        return categoryLocks[Math.floorMod(category.hashCode(), CATEGORY_STRIPES)];
+    }
+
+    // Income and expense cents per category name, in the order categories first appeared
+    Map<String, long[]> categoryTotals() {
+        long start = System.nanoTime();
+        long stamp = ledgerLock.readLock();
+        try {
+            CategoryDictionary categories = transactions.categories();
+            Map<String, long[]> totals = new LinkedHashMap<>();
+            for (int id = 0; id < categories.size(); id++) {
+                totals.put(categories.name(id), new long[] {
+                    aggregates.categoryIncome(id), aggregates.categoryExpenses(id) });
             }
+            return totals;
+        } finally {
+            ledgerLock.unlockRead(stamp);
+            Metrics.CATEGORY_REPORT.recordSince(start);
         }
     }
 
-    private void updateBudgetForCategory(String category, double amount) {
-        for (Budget budget : budgets) {
-            if (budget.getCategory().equals(category)) {
-                budget.addSpending(amount);
-                break;
+    // { month index, income cents, expense cents } of every month with transactions
+    List<long[]> monthlyTotals() {
+        long start = System.nanoTime();
+        long stamp = ledgerLock.readLock();
+        try {
+            return aggregates.monthlyTotals();
+        } finally {
+            ledgerLock.unlockRead(stamp);
+            Metrics.MONTHLY_REPORT.recordSince(start);
+        }
+    }
+
+    Collection<Budget> budgets() {
+        rollBudgets();
+        return Collections.unmodifiableCollection(budgets.values());
+    }
+
+    // Income and expense totals in cents, read optimistically and retried under the read
+    // lock only if a writer got in between
+    long[] totals() {
+        long stamp = ledgerLock.tryOptimisticRead();
+        long income = aggregates.totalIncome();
+        long expenses = aggregates.totalExpenses();
+        if (!ledgerLock.validate(stamp)) {
+            stamp = ledgerLock.readLock();
+            try {
+                income = aggregates.totalIncome();
+                expenses = aggregates.totalExpenses();
+            } finally {
+                ledgerLock.unlockRead(stamp);
             }
         }
+        return new long[] { income, expenses };
+    }
+
+    // Opening partitions changes the ledger, so it takes the write lock, and only when the
+    // range still has months that are not loaded
+    private void loadMonths(int fromMonth, int toMonth) {
+        long stamp = ledgerLock.readLock();
+        try {
+            if (!transactions.hasUnloaded(fromMonth, toMonth)) return;
+        } finally {
+            ledgerLock.unlockRead(stamp);
+        }
+        stamp = ledgerLock.writeLock();
+        try {
+            transactions.loadMonths(fromMonth, toMonth);
+        } finally {
+            ledgerLock.unlockWrite(stamp);
+        }
     }
 
     // Main Method
     public static void main(String[] args) {
         try {
+            Metrics.registerMBean();
             PersonalFinanceManager manager = new PersonalFinanceManager();
+            if (args.length == 2 && args[0].equals("--import")) {
+                new BulkImporter(manager).importFile(Paths.get(args[1]));
+                return;
+            }
+            if (args.length == 2 && args[0].equals("--export")) {
+                manager.exportTo(args[1]);
+                return;
+            }
+            if (args.length >= 1 && args[0].equals("--serve")) {
+                int port = args.length > 1 ? Integer.parseInt(args[1]) : ApiServer.DEFAULT_PORT;
+                manager.startRecurring();
+                new ApiServer(manager, port).start();
+                return;
+            }
             manager.run();
         } catch (Exception e) {
             System.out.println("Critical error: " + e.getMessage());
@@ -0,0 +1,114 @@
+import java.security.SecureRandom;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+// BenchmarkWorkload class
+// The operations StoreBenchmarks times, run against the application's own classes over
+// a synthetic ledger written to the store once during setup.
+public class BenchmarkWorkload implements benchmarks.Workload {
+    private static final int SEARCH_TERMS = 20;
+
+    private int categories;
+    private Ledger generated;
+    private List<String> lines;
+    private List<String> terms;
+    private PersonalFinanceManager manager;
+    private SplittableRandom random;
+    private int next;
+
+    @Override
+    public void setUp(int rows, int categories, int days, long seed) {
+        // The generated store is thrown away, so any passphrase will do
+        if (!CipherFile.hasPassphrase()) {
+            CipherFile.usePassphrase(Long.toHexString(new SecureRandom().nextLong()));
+        }
+        this.categories = categories;
+        generated = generate(rows, categories, days, seed);
+        FileManager.saveTransactions(generated);
+
+        lines = new ArrayList<>(generated.rowLimit());
+        for (int row = 0; row < generated.rowLimit(); row++) {
+            lines.add(generated.get(row).toFileString());
+        }
+        // Search matches lower-case terms, as the menu and the API pass them
+        terms = new ArrayList<>();
+        for (int i = 0; i < SEARCH_TERMS; i++) {
+            terms.add(i % 4 == 0 ? "cat" + (i % categories) : "shop" + i);
+        }
+
+        manager = new PersonalFinanceManager();
+        // Limits no expense can reach, so no alert fires while timing
+        for (int i = 0; i < categories; i++) {
+            manager.setBudget("CAT" + i, Money.ofCents(1_000_000_000_000L));
+        }
+        random = new SplittableRandom(seed);
+    }
+
+    @Override
+    public void tearDown() {
+        FileManager.flush();
+        FileManager.awaitCompaction();
+    }
+
+    @Override
+    public Object save() {
+        generated.markAllDirty();
+        return FileManager.saveTransactions(generated);
+    }
+
+    @Override
+    public Object load() {
+        Ledger ledger = FileManager.loadTransactions();
+        ledger.loadAll();
+        return ledger;
+    }
+
+    @Override
+    public Object parse() {
+        return Transaction.fromFileString(lines.get(next++ % lines.size()));
+    }
+
+    @Override
+    public Object search() {
+        return manager.search(terms.get(next++ % terms.size()));
+    }
+
+    @Override
+    public Object budgetReconcile() {
+        manager.reconcileBudgets();
+        return manager;
+    }
+
+    // Adds go through the journal, indexes and budgets, and compact like any others
+    @Override
+    public Object add() {
+        return manager.add(new Transaction(TransactionType.EXPENSE, Money.ofCents(100 + random.nextInt(50_000)),
+            "CAT" + random.nextInt(categories), "bench add shop" + random.nextInt(100)));
+    }
+
+    @Override
+    public Object analytics() {
+        return LedgerAggregates.build(generated);
+    }
+
+    // Synthetic ledger
+    // Rows run in date order over the span ending today, like a ledger filled over time.
+    // One in five is income; descriptions carry a "shopN" token for the search benchmark.
+    static Ledger generate(int rows, int categories, int days, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        Ledger ledger = Ledger.empty();
+        long firstDay = LocalDate.now().toEpochDay() - days + 1;
+        for (int i = 0; i < rows; i++) {
+            boolean income = random.nextInt(5) == 0;
+            ledger.add(new Transaction(TransactionIdGenerator.nextId(),
+                income ? TransactionType.INCOME : TransactionType.EXPENSE,
+                Money.ofCents(100 + random.nextInt(income ? 500_000 : 50_000)),
+                "CAT" + random.nextInt(categories),
+                "item " + i + " shop" + random.nextInt(100),
+                LocalDate.ofEpochDay(firstDay + (long) i * days / rows)));
+        }
+        return ledger;
+    }
+}
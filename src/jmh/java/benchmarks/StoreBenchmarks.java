@@ -0,0 +1,105 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Timings of saving and loading the partitioned store, parsing text records, search,
+// adding expenses, budget reconciliation and analytics over a synthetic ledger. Each
+// benchmark forks its own JVM, whose store lives in a fresh temporary directory passed
+// to the application as pfm.dataDir and removed afterwards.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StoreBenchmarks {
+    @Param("100000")
+    int rows;
+
+    @Param("20")
+    int categories;
+
+    @Param("730")
+    int days;
+
+    @Param("42")
+    long seed;
+
+    private Path dataDir;
+    private Workload workload;
+
+    @Setup
+    public void setUp() throws Exception {
+        dataDir = Files.createTempDirectory("pfm-bench");
+        // Read once when the store is first touched, which is inside setUp below
+        System.setProperty("pfm.dataDir", dataDir.toString());
+        workload = (Workload) Class.forName("BenchmarkWorkload").getDeclaredConstructor().newInstance();
+        workload.setUp(rows, categories, days, seed);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        workload.tearDown();
+        try (Stream<Path> files = Files.walk(dataDir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public Object save() {
+        return workload.save();
+    }
+
+    @Benchmark
+    public Object load() {
+        return workload.load();
+    }
+
+    // One record per operation
+    @Benchmark
+    public Object parse() {
+        return workload.parse();
+    }
+
+    // One term per operation
+    @Benchmark
+    public Object search() {
+        return workload.search();
+    }
+
+    // Every budget per operation
+    @Benchmark
+    public Object budgetReconcile() {
+        return workload.budgetReconcile();
+    }
+
+    // One expense per operation, through the journal, indexes and budgets
+    @Benchmark
+    public Object add() {
+        return workload.add();
+    }
+
+    @Benchmark
+    public Object analytics() {
+        return workload.analytics();
+    }
+}
@@ -0,0 +1,26 @@
+package benchmarks;
+
+// The hot paths measured by StoreBenchmarks. The application lives in the unnamed package,
+// which JMH benchmarks cannot, so BenchmarkWorkload implements this next to it and is
+// loaded by name.
+public interface Workload {
+    // Generates the ledger, writes it to the store in the data directory and opens it
+    void setUp(int rows, int categories, int days, long seed) throws Exception;
+
+    // Flushes the writer and waits for compaction, so the store can be removed
+    void tearDown();
+
+    Object save();
+
+    Object load();
+
+    Object parse();
+
+    Object search();
+
+    Object budgetReconcile();
+
+    Object add();
+
+    Object analytics();
+}
@@ -0,0 +1,227 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Frames must only decrypt at their own index in their own file, with the final frame of a
+// sealed file marked as last
+class CipherFileTest {
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    static void usePassphrase() {
+        CipherFile.usePassphrase("test");
+    }
+
+    @Test
+    void sealedFileRoundTrips() throws IOException {
+        byte[] plain = randomBytes(2 * CipherFile.FRAME_BYTES + 100);
+        Path file = dir.resolve("sealed.dat");
+        CipherFile.write(file, ByteBuffer.wrap(plain));
+
+        assertArrayEquals(plain, toArray(CipherFile.read(file, false)));
+        assertEquals(3, framePositions(file).size());
+    }
+
+    @Test
+    void readerSlicesAcrossFrames() throws IOException {
+        byte[] plain = randomBytes(2 * CipherFile.FRAME_BYTES + 100);
+        Path file = dir.resolve("sealed.dat");
+        CipherFile.write(file, ByteBuffer.wrap(plain));
+
+        CipherFile.Reader reader = CipherFile.Reader.open(file);
+        assertEquals(plain.length, reader.size());
+        int from = CipherFile.FRAME_BYTES - 10;
+        byte[] expected = new byte[CipherFile.FRAME_BYTES + 20];
+        System.arraycopy(plain, from, expected, 0, expected.length);
+        assertArrayEquals(expected, toArray(reader.slice(from, expected.length)));
+    }
+
+    @Test
+    void tamperedFrameIsRejected() throws IOException {
+        Path file = dir.resolve("sealed.dat");
+        CipherFile.write(file, ByteBuffer.wrap(randomBytes(3 * CipherFile.FRAME_BYTES)));
+        flipByte(file, framePositions(file).get(0) + CipherFile.FRAME_OVERHEAD + 5);
+
+        assertThrows(IllegalStateException.class, () -> CipherFile.read(file, false));
+        // A Reader only checks the last frame when it opens
+        CipherFile.Reader reader = CipherFile.Reader.open(file);
+        assertThrows(IllegalStateException.class, () -> reader.slice(0, 10));
+    }
+
+    @Test
+    void swappedFramesAreRejected() throws IOException {
+        Path file = dir.resolve("sealed.dat");
+        CipherFile.write(file, ByteBuffer.wrap(randomBytes(3 * CipherFile.FRAME_BYTES)));
+        List<byte[]> frames = frames(file);
+        byte[] first = frames.get(0);
+        frames.set(0, frames.get(1));
+        frames.set(1, first);
+        rewriteFrames(file, frames);
+
+        assertThrows(IllegalStateException.class, () -> CipherFile.read(file, false));
+    }
+
+    @Test
+    void fileCutAfterAWholeFrameIsRejected() throws IOException {
+        Path file = dir.resolve("sealed.dat");
+        CipherFile.write(file, ByteBuffer.wrap(randomBytes(2 * CipherFile.FRAME_BYTES)));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(framePositions(file).get(1));
+        }
+
+        assertThrows(IllegalStateException.class, () -> CipherFile.read(file, false));
+        assertThrows(IllegalStateException.class, () -> CipherFile.Reader.open(file));
+    }
+
+    @Test
+    void frameFromAnotherFileIsRejected() throws IOException {
+        Path file = dir.resolve("a.dat");
+        Path other = dir.resolve("b.dat");
+        CipherFile.write(file, ByteBuffer.wrap(randomBytes(2 * CipherFile.FRAME_BYTES)));
+        CipherFile.write(other, ByteBuffer.wrap(randomBytes(2 * CipherFile.FRAME_BYTES)));
+        List<byte[]> frames = frames(file);
+        frames.set(0, frames(other).get(0));
+        rewriteFrames(file, frames);
+
+        assertThrows(IllegalStateException.class, () -> CipherFile.read(file, false));
+    }
+
+    @Test
+    void appendableFileSkipsTamperedAndReorderedFrames() throws IOException {
+        Path file = dir.resolve("journal");
+        for (String record : new String[] { "one", "two", "six", "ten" }) {
+            CipherFile.append(file, record.getBytes(StandardCharsets.UTF_8), false);
+        }
+        assertEquals(List.of("one", "two", "six", "ten"), readRecords(file, 0));
+
+        flipByte(file, framePositions(file).get(1) + CipherFile.FRAME_OVERHEAD - 1);
+        assertEquals(List.of("one", "six", "ten"), readRecords(file, 1));
+
+        List<byte[]> frames = frames(file);
+        byte[] third = frames.get(2);
+        frames.set(2, frames.get(3));
+        frames.set(3, third);
+        rewriteFrames(file, frames);
+        assertEquals(List.of("one"), readRecords(file, 3));
+    }
+
+    @Test
+    void tornFrameIsCutOffAndLaterAppendsRead() throws IOException {
+        Path file = dir.resolve("journal");
+        CipherFile.append(file, "one".getBytes(StandardCharsets.UTF_8), false);
+        CipherFile.append(file, "two".getBytes(StandardCharsets.UTF_8), false);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 4);
+        }
+        assertEquals(List.of("one"), readRecords(file, 1));
+
+        assertTrue(CipherFile.truncateTornFrame(file));
+        CipherFile.append(file, "six".getBytes(StandardCharsets.UTF_8), false);
+        assertEquals(List.of("one", "six"), readRecords(file, 0));
+    }
+
+    @Test
+    void sealedFileCannotBeAppendedTo() throws IOException {
+        Path file = dir.resolve("sealed.dat");
+        CipherFile.write(file, ByteBuffer.wrap(randomBytes(10)));
+
+        assertThrows(IOException.class, () -> CipherFile.append(file, new byte[1], false));
+    }
+
+    @Test
+    void wrongPassphraseIsRejected() throws IOException {
+        Path file = dir.resolve("sealed.dat");
+        CipherFile.write(file, ByteBuffer.wrap(randomBytes(10)));
+        CipherFile.usePassphrase("other");
+        try {
+            assertThrows(IllegalStateException.class, () -> CipherFile.read(file, false));
+        } finally {
+            CipherFile.usePassphrase("test");
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static List<String> readRecords(Path file, int expectedSkipped) throws IOException {
+        List<String> records = new ArrayList<>();
+        int skipped = CipherFile.readFrames(file, frame -> records.add(StandardCharsets.UTF_8.decode(frame).toString()));
+        assertEquals(expectedSkipped, skipped);
+        return records;
+    }
+
+    // File position of every whole frame, from the length prefixes
+    static List<Long> framePositions(Path file) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+        List<Long> positions = new ArrayList<>();
+        int position = CipherFile.HEADER_BYTES;
+        while (position + CipherFile.FRAME_OVERHEAD <= data.limit()) {
+            int next = position + CipherFile.FRAME_OVERHEAD + data.getInt(position);
+            if (next > data.limit()) break;
+            positions.add((long) position);
+            position = next;
+        }
+        return positions;
+    }
+
+    static void flipByte(Path file, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, position);
+            b.put(0, (byte) (b.get(0) ^ 1));
+            b.rewind();
+            channel.write(b, position);
+        }
+    }
+
+    private static List<byte[]> frames(Path file) throws IOException {
+        byte[] data = Files.readAllBytes(file);
+        List<Long> positions = framePositions(file);
+        List<byte[]> frames = new ArrayList<>();
+        for (int i = 0; i < positions.size(); i++) {
+            int from = positions.get(i).intValue();
+            int to = i + 1 < positions.size() ? positions.get(i + 1).intValue() : data.length;
+            byte[] frame = new byte[to - from];
+            System.arraycopy(data, from, frame, 0, frame.length);
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    private static void rewriteFrames(Path file, List<byte[]> frames) throws IOException {
+        byte[] header = new byte[CipherFile.HEADER_BYTES];
+        System.arraycopy(Files.readAllBytes(file), 0, header, 0, header.length);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(header));
+            for (byte[] frame : frames) {
+                channel.write(ByteBuffer.wrap(frame));
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Recovery of the store from what a crash can leave behind: a torn or damaged journal, an
+// interrupted compaction, partitions the manifest never committed and stray temp files.
+// Every test starts from an empty data directory and reloads the way a restart does.
+class FileManagerTest {
+    @TempDir
+    static Path dataDir;
+
+    @BeforeAll
+    static void useDataDir() {
+        // Read when FileManager is first touched
+        System.setProperty("pfm.dataDir", dataDir.toString());
+        CipherFile.usePassphrase("test");
+    }
+
+    @BeforeEach
+    void emptyStore() throws IOException {
+        FileManager.flush();
+        try (Stream<Path> files = Files.walk(dataDir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                if (!file.equals(dataDir)) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    @Test
+    void replayStopsAtATornLastFrame() throws IOException {
+        Ledger ledger = FileManager.loadTransactions();
+        Transaction first = commit(ledger, "first");
+        Transaction second = commit(ledger, "second");
+        Transaction torn = commit(ledger, "torn");
+        Path journal = dataDir.resolve("transactions.journal");
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 7);
+        }
+
+        long tornFrames = Metrics.JOURNAL_TORN_FRAMES.get();
+        ledger = FileManager.loadTransactions();
+        assertEquals(tornFrames + 1, Metrics.JOURNAL_TORN_FRAMES.get());
+        assertEquals(2, ledger.size());
+        assertTrue(ledger.rowOf(first.getId()) >= 0);
+        assertTrue(ledger.rowOf(second.getId()) >= 0);
+        assertEquals(-1, ledger.rowOf(torn.getId()));
+
+        // The torn frame is gone, so it does not hide what is appended after it
+        Transaction later = commit(ledger, "later");
+        ledger = FileManager.loadTransactions();
+        assertEquals(3, ledger.size());
+        assertTrue(ledger.rowOf(later.getId()) >= 0);
+    }
+
+    @Test
+    void replaySkipsAFrameThatDoesNotDecrypt() throws IOException {
+        Ledger ledger = FileManager.loadTransactions();
+        Transaction first = commit(ledger, "first");
+        Transaction damaged = commit(ledger, "damaged");
+        Transaction last = commit(ledger, "last");
+        Path journal = dataDir.resolve("transactions.journal");
+        CipherFileTest.flipByte(journal, CipherFileTest.framePositions(journal).get(1) + CipherFile.FRAME_OVERHEAD);
+
+        long skippedFrames = Metrics.JOURNAL_SKIPPED_FRAMES.get();
+        ledger = FileManager.loadTransactions();
+        assertEquals(skippedFrames + 1, Metrics.JOURNAL_SKIPPED_FRAMES.get());
+        assertTrue(ledger.rowOf(first.getId()) >= 0);
+        assertEquals(-1, ledger.rowOf(damaged.getId()));
+        assertTrue(ledger.rowOf(last.getId()) >= 0);
+    }
+
+    @Test
+    void interruptedCompactionAddsAndDeletesOnce() throws IOException {
+        Ledger ledger = FileManager.loadTransactions();
+        Transaction kept = commit(ledger, "kept");
+        Transaction deleted = commit(ledger, "deleted");
+        // The compaction wrote the partitions, then stopped before removing its journal
+        assertTrue(FileManager.saveTransactions(ledger.snapshot()));
+        ledger.delete(ledger.rowOf(deleted.getId()));
+        FileManager.appendDeletion(deleted.getId(), ledger);
+        FileManager.flush();
+        Files.move(dataDir.resolve("transactions.journal"), dataDir.resolve("transactions.journal.compacting"));
+
+        ledger = FileManager.loadTransactions();
+        assertEquals(1, ledger.size());
+        assertTrue(ledger.rowOf(kept.getId()) >= 0);
+        assertEquals(-1, ledger.rowOf(deleted.getId()));
+    }
+
+    @Test
+    void partitionsTheManifestNeverListedAreDiscarded() throws IOException {
+        Ledger ledger = FileManager.loadTransactions();
+        Transaction committed = commit(ledger, "committed");
+        assertTrue(FileManager.saveTransactions(ledger.snapshot()));
+        Path manifest = dataDir.resolve("transactions.manifest");
+        byte[] committedManifest = Files.readAllBytes(manifest);
+        Set<String> committedFiles = partitionFiles();
+
+        // A second save writes a new generation, then crashes before the manifest is replaced
+        Transaction uncommitted = commit(ledger, "uncommitted");
+        assertTrue(FileManager.saveTransactions(ledger.snapshot()));
+        Files.write(manifest, committedManifest);
+        Files.delete(dataDir.resolve("transactions.journal"));
+        Files.write(dataDir.resolve("partitions").resolve("stray.dat.tmp"), new byte[] { 1, 2, 3 });
+
+        ledger = FileManager.loadTransactions();
+        ledger.loadAll();
+        assertEquals(1, ledger.size());
+        assertTrue(ledger.rowOf(committed.getId()) >= 0);
+        assertEquals(-1, ledger.rowOf(uncommitted.getId()));
+        assertEquals(committedFiles, partitionFiles());
+    }
+
+    @Test
+    void replaceAtomicallySwapsInTheWholeFile() throws IOException {
+        Path target = dataDir.resolve("budgets.dat");
+        Path temp = dataDir.resolve("budgets.dat.tmp");
+        Files.write(target, "old".getBytes(StandardCharsets.UTF_8));
+        Files.write(temp, "new".getBytes(StandardCharsets.UTF_8));
+
+        FileManager.replaceAtomically(temp, target);
+        assertArrayEquals("new".getBytes(StandardCharsets.UTF_8), Files.readAllBytes(target));
+        assertFalse(Files.exists(temp));
+    }
+
+    @Test
+    void tempFileLeftByACrashIsIgnoredAndReplaced() throws IOException {
+        Ledger ledger = FileManager.loadTransactions();
+        Transaction saved = commit(ledger, "saved");
+        compact(ledger);
+        // Crashed part way through writing the next manifest
+        Path temp = dataDir.resolve("transactions.manifest.tmp");
+        Files.write(temp, new byte[] { 'P', 'F', 'M' });
+
+        ledger = FileManager.loadTransactions();
+        assertTrue(ledger.rowOf(saved.getId()) >= 0);
+        Transaction next = commit(ledger, "next");
+        compact(ledger);
+        assertFalse(Files.exists(temp));
+
+        ledger = FileManager.loadTransactions();
+        assertEquals(2, ledger.size());
+        assertTrue(ledger.rowOf(next.getId()) >= 0);
+    }
+
+    // Adds an expense and syncs it to the journal as a frame of its own
+    private static Transaction commit(Ledger ledger, String description) {
+        Transaction transaction = new Transaction(TransactionType.EXPENSE, Money.ofCents(1250), "Food", description);
+        ledger.add(transaction);
+        FileManager.appendTransaction(transaction, ledger);
+        FileManager.flush();
+        return transaction;
+    }
+
+    // Folds the journal into the partitions, as a finished compaction leaves them
+    private static void compact(Ledger ledger) throws IOException {
+        assertTrue(FileManager.saveTransactions(ledger.snapshot()));
+        Files.delete(dataDir.resolve("transactions.journal"));
+    }
+
+    private static Set<String> partitionFiles() throws IOException {
+        try (Stream<Path> files = Files.list(dataDir.resolve("partitions"))) {
+            return files.map(file -> file.getFileName().toString()).collect(Collectors.toSet());
+        }
+    }
+}
@@ -0,0 +1,59 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.List;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Each occurrence goes into the ledger once, however much of the rules' progress a restart
+// finds on disk
+class RecurringSchedulerTest {
+    @TempDir
+    static Path dataDir;
+
+    @BeforeAll
+    static void useDataDir() {
+        // Read when FileManager is first touched
+        System.setProperty("pfm.dataDir", dataDir.toString());
+        CipherFile.usePassphrase("test");
+    }
+
+    @Test
+    void lostProgressSkipsOccurrencesAlreadyJournaled() {
+        LocalDate today = LocalDate.now();
+        RecurringRule rule = new RecurringRule(TransactionType.EXPENSE, Money.ofCents(500), "Rent", "rent",
+            "daily", today.minusDays(9));
+        // The rule as saved before any occurrence was added
+        String unstarted = rule.toFileString();
+        PersonalFinanceManager manager = new PersonalFinanceManager();
+        assertEquals(10, manager.addRecurring(rule));
+        FileManager.flush();
+
+        // A restart that lost the progress recreates the same ids and finds them in the journal
+        PersonalFinanceManager restarted = new PersonalFinanceManager();
+        RecurringScheduler scheduler = new RecurringScheduler(restarted,
+            List.of(RecurringRule.fromFileString(unstarted)));
+        long duplicates = Metrics.RECURRING_DUPLICATES.get();
+        assertEquals(0, scheduler.materialize(today));
+        assertEquals(duplicates + 10, Metrics.RECURRING_DUPLICATES.get());
+        assertEquals(10, restarted.search("rent").size());
+    }
+
+    @Test
+    void deletedOccurrenceStaysDeletedAfterRestart() {
+        LocalDate today = LocalDate.now();
+        RecurringRule rule = new RecurringRule(TransactionType.EXPENSE, Money.ofCents(900), "Gym", "gym",
+            "daily", today.minusDays(4));
+        PersonalFinanceManager manager = new PersonalFinanceManager();
+        assertEquals(5, manager.addRecurring(rule));
+        String victim = rule.occurrenceId(today.minusDays(2));
+        assertEquals(victim, manager.delete(victim).getId());
+        FileManager.flush();
+
+        PersonalFinanceManager restarted = new PersonalFinanceManager();
+        assertEquals(0, restarted.startRecurring());
+        assertEquals(4, restarted.search("gym").size());
+    }
+}